@@ -0,0 +1,198 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import java.nio.charset.Charset;
+
+/**
+ * Number parsing straight from bytes (ASCII compatible charsets), without a String per value
+ */
+final class ByteParser
+{
+
+    /**
+     * exact powers of ten as double
+     */
+    private static final double[] POW10 =
+    {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    /**
+     * digits of a long always exact as double
+     */
+    private static final int MAX_EXACT_DIGITS = 15;
+    /**
+     * not parsable int
+     */
+    private static final long INVALID = Long.MIN_VALUE;
+
+    private ByteParser()
+    {
+    }
+
+    /**
+     * Empty or spaces only value
+     */
+    static boolean isBlank(byte[] buf, int off, int len)
+    {
+        for (int pos = off; pos < off + len; pos++)
+        {
+            if (buf[pos] != ' ')
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse int value
+     * @return int value, 0 if not parsable (or out of range)
+     */
+    static int parseInt(byte[] buf, int off, int len)
+    {
+        long value = parseLong(buf, off, len);
+        return value == INVALID ? 0 : (int) value;
+    }
+
+    /**
+     * Valid int value (as new Integer(), spaces around allowed)
+     */
+    static boolean isInt(byte[] buf, int off, int len)
+    {
+        return parseLong(buf, off, len) != INVALID;
+    }
+
+    /**
+     * @return value in int range, INVALID if not parsable
+     */
+    private static long parseLong(byte[] buf, int off, int len)
+    {
+        int end = off + len;
+        while (off < end && buf[off] == ' ')
+        {
+            off++;
+        }
+        while (end > off && buf[end - 1] == ' ')
+        {
+            end--;
+        }
+        if (off == end)
+        {
+            return INVALID;
+        }
+
+        boolean negative = false;
+        if (buf[off] == '-' || buf[off] == '+')
+        {
+            negative = buf[off] == '-';
+            off++;
+            if (off == end)
+            {
+                return INVALID;
+            }
+        }
+
+        long value = 0;
+        for (int pos = off; pos < end; pos++)
+        {
+            int digit = buf[pos] - '0';
+            if (digit < 0 || digit > 9)
+            {
+                return INVALID;
+            }
+            value = value * 10 + digit;
+            if (value > 1L + Integer.MAX_VALUE)
+            {
+                return INVALID;
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE)
+        {
+            return INVALID;
+        }
+        return value;
+    }
+
+    /**
+     * Parse double value, with the same rules of DataMirror.gdv():
+     * a single '.' or ',' is the decimal separator.
+     * Simple values are converted exactly without allocations, other values go through gdv()
+     * @return double value, 0 if not parsable
+     */
+    static double parseDouble(byte[] buf, int off, int len, Charset charset)
+    {
+        int end = off + len;
+        while (off < end && buf[off] == ' ')
+        {
+            off++;
+        }
+        while (end > off && buf[end - 1] == ' ')
+        {
+            end--;
+        }
+        if (off == end)
+        {
+            return 0;
+        }
+
+        int pos = off;
+        boolean negative = false;
+        if (buf[pos] == '-' || buf[pos] == '+')
+        {
+            negative = buf[pos] == '-';
+            pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        boolean simple = pos < end;
+        for (; pos < end && simple; pos++)
+        {
+            byte ch = buf[pos];
+            if (ch >= '0' && ch <= '9')
+            {
+                mantissa = mantissa * 10 + (ch - '0');
+                digits++;
+                if (decimals >= 0)
+                {
+                    decimals++;
+                }
+            }
+            else if ((ch == '.' || ch == ',') && decimals < 0)
+            {
+                decimals = 0;
+            }
+            else
+            {
+                simple = false;
+            }
+        }
+
+        if (simple && digits > 0 && digits <= MAX_EXACT_DIGITS && decimals < POW10.length)
+        {
+            // mantissa and 10^decimals are exact doubles: one correctly rounded division
+            double value = decimals > 0 ? mantissa / POW10[decimals] : (double) mantissa;
+            return negative ? -value : value;
+        }
+
+        return DataMirror.gdv(new String(buf, off, end - off, charset));
+    }
+}
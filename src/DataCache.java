@@ -0,0 +1,521 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+
+/**
+ * Read-mostly cache of a reference table (copy on write).
+ * Readers get an immutable Snapshot with a single volatile read, without locks;
+ * refreshes are loaded on a background scheduler and swapped in atomically,
+ * so request threads never wait for a reload.
+ * Refresh is full, or incremental on a change timestamp field (full every N refreshes,
+ * to see the deleted rows). Cached structs must not be modified.
+ * Metrics (DataMetrics): cache.NAME.size, .staleness (ms), .lastDuration (ms), .refreshes, .failures
+ */
+public class DataCache
+{
+
+    private final String name;
+    private final DataSource dataSource;
+    private final String sql;
+    private final DataStruct model;
+    private final StructMeta meta;
+    private int[] keys;
+    private int changeField = -1;
+    private String changeSql = null;
+    private int fullEvery = 0;
+    private final List<String> hashIndexes = new ArrayList<String>();
+    private final List<String> sortedIndexes = new ArrayList<String>();
+    private volatile Snapshot snapshot;
+    private ScheduledExecutorService scheduler = null;
+    private boolean ownScheduler = false;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private int incrementalCount = 0;
+    private volatile long lastDuration = 0;
+    private volatile Exception lastError = null;
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Immutable content of the cache
+     */
+    public static class Snapshot
+    {
+
+        private final List<DataStruct> rows;
+        private final DataTable table;
+        private final long loadedAt;
+        private final Object maxChange;
+
+        Snapshot(List<DataStruct> rows, DataTable table, long loadedAt, Object maxChange)
+        {
+            this.rows = Collections.unmodifiableList(rows);
+            this.table = table;
+            this.loadedAt = loadedAt;
+            this.maxChange = maxChange;
+        }
+
+        public List<DataStruct> getRows()
+        {
+            return rows;
+        }
+
+        public int size()
+        {
+            return rows.size();
+        }
+
+        /**
+         * Load time (System.currentTimeMillis()), 0 if never loaded
+         */
+        public long getLoadedAt()
+        {
+            return loadedAt;
+        }
+
+        /**
+         * Query by example on the declared indexes (see DataTable)
+         */
+        public List<DataStruct> find(DataStruct probe)
+        {
+            return table.find(probe);
+        }
+
+        public DataStruct findFirst(DataStruct probe)
+        {
+            return table.findFirst(probe);
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name cache name (for metrics)
+     * @param dataSource
+     * @param sql full load query
+     * @param model model of the cached structs
+     */
+    public DataCache(String name, DataSource dataSource, String sql, DataStruct model)
+    {
+        this.name = name;
+        this.dataSource = dataSource;
+        this.sql = sql;
+        this.model = model;
+        this.meta = StructMeta.of(model);
+
+        this.keys = meta.keyFields();
+
+        snapshot = new Snapshot(new ArrayList<DataStruct>(0), new DataTable(model), 0, null);
+        registerMetrics();
+    }
+
+    /**
+     * Key fields for incremental merge (default PKID)
+     */
+    public DataCache keys(String... fields)
+    {
+        keys = meta.keyFields(fields);
+        return this;
+    }
+
+    /**
+     * Incremental refresh
+     * @param changeField change timestamp field (int, double, or String as yyyyMMddHHmmss)
+     * @param changeSql query of the changed rows, with a single parameter: max change value loaded.
+     * Compare with >= (e.g. "... WHERE CHANGED >= ?"), not >: rows changed later within the
+     * same timestamp would be missed otherwise. The rows at the max value are read again,
+     * harmless since the merge replaces them by key
+     * @param fullEvery full refresh every N refreshes (0 = only the first one)
+     */
+    public DataCache incremental(String changeField, String changeSql, int fullEvery)
+    {
+        this.changeField = fieldIndex(changeField);
+        this.changeSql = changeSql;
+        this.fullEvery = fullEvery;
+        return this;
+    }
+
+    public DataCache hashIndex(String field)
+    {
+        fieldIndex(field);
+        hashIndexes.add(field);
+        return this;
+    }
+
+    public DataCache sortedIndex(String field)
+    {
+        fieldIndex(field);
+        sortedIndexes.add(field);
+        return this;
+    }
+
+    private int fieldIndex(String field)
+    {
+        int idf = meta.indexOf(field);
+        if (idf < 0 || meta.getType(idf) == StructMeta.TYPE_OTHER)
+        {
+            throw new IllegalArgumentException("Unknown field: " + field);
+        }
+        return idf;
+    }
+
+    /**
+     * Start the background refresh on an own daemon thread (first load immediately)
+     */
+    public void start(long period, TimeUnit unit)
+    {
+        ScheduledExecutorService own = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "DataCache-" + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        startOn(own, true, period, unit);
+    }
+
+    /**
+     * Start the background refresh on a shared scheduler (first load immediately)
+     */
+    public void start(ScheduledExecutorService scheduler, long period, TimeUnit unit)
+    {
+        startOn(scheduler, false, period, unit);
+    }
+
+    private synchronized void startOn(ScheduledExecutorService scheduler, boolean own, long period, TimeUnit unit)
+    {
+        if (this.scheduler != null)
+        {
+            if (own)
+            {
+                scheduler.shutdownNow();
+            }
+            throw new IllegalStateException("Cache " + name + " already started");
+        }
+        this.scheduler = scheduler;
+        this.ownScheduler = own;
+        registerMetrics();
+        scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                refreshQuietly();
+            }
+        }, 0, period, unit);
+    }
+
+    public synchronized void stop()
+    {
+        if (scheduler != null && ownScheduler)
+        {
+            scheduler.shutdownNow();
+        }
+        scheduler = null;
+        DataMetrics.remove(metricName(""));
+    }
+
+    /**
+     * Current snapshot (never blocks)
+     */
+    public Snapshot get()
+    {
+        return snapshot;
+    }
+
+    /**
+     * Ask an immediate refresh in background (ignored if not started)
+     */
+    public synchronized void refreshNow()
+    {
+        if (scheduler != null)
+        {
+            scheduler.execute(new Runnable()
+            {
+                public void run()
+                {
+                    refreshQuietly();
+                }
+            });
+        }
+    }
+
+    private void refreshQuietly()
+    {
+        try
+        {
+            refresh();
+        }
+        catch (Exception exc)
+        {
+            // keep the current snapshot
+        }
+    }
+
+    /**
+     * Reload now in the calling thread (e.g. at startup)
+     * @return false if another refresh was running
+     * @throws SQLException
+     */
+    public boolean refresh() throws SQLException
+    {
+        if (!refreshing.compareAndSet(false, true))
+        {
+            return false;
+        }
+        long start = System.nanoTime();
+        try
+        {
+            Snapshot current = snapshot;
+            boolean full = changeSql == null || current.loadedAt == 0 || current.maxChange == null
+                    || (fullEvery > 0 && incrementalCount >= fullEvery);
+
+            Snapshot loaded;
+            if (full)
+            {
+                loaded = build(load(sql, null), System.currentTimeMillis());
+                incrementalCount = 0;
+            }
+            else
+            {
+                loaded = merge(current, load(changeSql, current.maxChange));
+                incrementalCount++;
+            }
+
+            snapshot = loaded;
+            refreshes.incrementAndGet();
+            lastError = null;
+            return true;
+        }
+        catch (SQLException sqlexc)
+        {
+            failures.incrementAndGet();
+            lastError = sqlexc;
+            throw sqlexc;
+        }
+        catch (RuntimeException rtexc)
+        {
+            failures.incrementAndGet();
+            lastError = rtexc;
+            throw rtexc;
+        }
+        finally
+        {
+            lastDuration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            refreshing.set(false);
+        }
+    }
+
+    private List<DataStruct> load(String query, Object changeValue) throws SQLException
+    {
+        List<DataStruct> rows = new ArrayList<DataStruct>();
+        Connection conn = dataSource.getConnection();
+        try
+        {
+            PreparedStatement prstm = conn.prepareStatement(query);
+            try
+            {
+                if (changeValue != null)
+                {
+                    prstm.setObject(1, changeValue);
+                }
+                FetchTuner tuner = FetchTuner.forQuery(model, query);
+                tuner.start(prstm);
+                ResultSet rset = prstm.executeQuery();
+                try
+                {
+                    while (tuner.next(rset))
+                    {
+                        DataStruct struct = meta.newInstance();
+                        DataMirror.on(struct).loadFromResultSetRow(rset);
+                        tuner.loaded(struct);
+                        rows.add(struct);
+                    }
+                }
+                finally
+                {
+                    rset.close();
+                }
+            }
+            finally
+            {
+                prstm.close();
+            }
+        }
+        finally
+        {
+            conn.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Previous rows replaced/extended by the changed ones (by key)
+     */
+    private Snapshot merge(Snapshot current, List<DataStruct> changed)
+    {
+        if (changed.isEmpty())
+        {
+            return new Snapshot(current.rows, current.table, System.currentTimeMillis(), current.maxChange);
+        }
+        if (keys.length == 0)
+        {
+            throw new IllegalStateException("No key fields for cache " + name);
+        }
+
+        Map<Object, DataStruct> merged = new LinkedHashMap<Object, DataStruct>(current.rows.size() * 2);
+        Iterator<DataStruct> rows = current.rows.iterator();
+        while (rows.hasNext())
+        {
+            DataStruct struct = rows.next();
+            merged.put(meta.key(struct, keys), struct);
+        }
+        rows = changed.iterator();
+        while (rows.hasNext())
+        {
+            DataStruct struct = rows.next();
+            merged.put(meta.key(struct, keys), struct);
+        }
+        return build(new ArrayList<DataStruct>(merged.values()), System.currentTimeMillis());
+    }
+
+    private Snapshot build(List<DataStruct> rows, long loadedAt)
+    {
+        DataTable table = new DataTable(model);
+        for (int idx = 0; idx < hashIndexes.size(); idx++)
+        {
+            table.hashIndex(hashIndexes.get(idx));
+        }
+        for (int idx = 0; idx < sortedIndexes.size(); idx++)
+        {
+            table.sortedIndex(sortedIndexes.get(idx));
+        }
+        table.addAll(rows);
+
+        Comparable maxChange = null;
+        if (changeField >= 0)
+        {
+            for (int pos = 0; pos < rows.size(); pos++)
+            {
+                Comparable value = (Comparable) meta.get(rows.get(pos), changeField);
+                if (value != null && (maxChange == null || value.compareTo(maxChange) > 0))
+                {
+                    maxChange = value;
+                }
+            }
+        }
+        return new Snapshot(rows, table, loadedAt, maxChange);
+    }
+
+    /**
+     * Milliseconds since the last successful load (-1 if never loaded)
+     */
+    public long getStaleness()
+    {
+        long loadedAt = snapshot.loadedAt;
+        return loadedAt == 0 ? -1 : System.currentTimeMillis() - loadedAt;
+    }
+
+    /**
+     * Duration of the last refresh (ms)
+     */
+    public long getLastDuration()
+    {
+        return lastDuration;
+    }
+
+    public long getRefreshCount()
+    {
+        return refreshes.get();
+    }
+
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+
+    /**
+     * Error of the last refresh, null if successful
+     */
+    public Exception getLastError()
+    {
+        return lastError;
+    }
+
+    private String metricName(String metric)
+    {
+        return "cache." + name + "." + metric;
+    }
+
+    private void registerMetrics()
+    {
+        DataMetrics.gauge(metricName("size"), new DataMetrics.Gauge()
+        {
+            public long value()
+            {
+                return snapshot.size();
+            }
+        });
+        DataMetrics.gauge(metricName("staleness"), new DataMetrics.Gauge()
+        {
+            public long value()
+            {
+                return getStaleness();
+            }
+        });
+        DataMetrics.gauge(metricName("lastDuration"), new DataMetrics.Gauge()
+        {
+            public long value()
+            {
+                return lastDuration;
+            }
+        });
+        DataMetrics.gauge(metricName("refreshes"), new DataMetrics.Gauge()
+        {
+            public long value()
+            {
+                return refreshes.get();
+            }
+        });
+        DataMetrics.gauge(metricName("failures"), new DataMetrics.Gauge()
+        {
+            public long value()
+            {
+                return failures.get();
+            }
+        });
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar container of DataStruct values (same class): one array per field
+ * instead of one object per row. int and double fields are primitive arrays,
+ * String fields are dictionary encoded (int code per row + distinct values)
+ * until the dictionary exceeds maxDictionary values, then stored as plain values.
+ * Rows are read back with toStruct(). Not synchronized.
+ */
+public class DataColumns
+{
+
+    public static final int DEFAULT_MAX_DICTIONARY = 65536;
+    private static final int INITIAL_CAPACITY = 1024;
+    private final StructMeta meta;
+    private final int maxDictionary;
+    /**
+     * columns by field position, null for fields of other types
+     */
+    private final Column[] columns;
+    private int size = 0;
+    private int capacity = INITIAL_CAPACITY;
+
+    /**
+     * Constructor
+     *
+     * @param dataStruct model of the rows
+     */
+    public DataColumns(DataStruct dataStruct)
+    {
+        this(dataStruct, DEFAULT_MAX_DICTIONARY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param dataStruct model of the rows
+     * @param maxDictionary distinct values of a String field kept dictionary encoded
+     */
+    public DataColumns(DataStruct dataStruct, int maxDictionary)
+    {
+        this.meta = StructMeta.of(dataStruct);
+        this.maxDictionary = maxDictionary;
+        this.columns = new Column[meta.size()];
+        for (int idf = 0; idf < columns.length; idf++)
+        {
+            switch (meta.getType(idf))
+            {
+                case StructMeta.TYPE_STRING:
+                    columns[idf] = new StringColumn(capacity);
+                    break;
+                case StructMeta.TYPE_INT:
+                    columns[idf] = new IntColumn(capacity);
+                    break;
+                case StructMeta.TYPE_DOUBLE:
+                    columns[idf] = new DoubleColumn(capacity);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Append the values of a struct
+     */
+    public void add(DataStruct dataStruct)
+    {
+        ensureCapacity();
+        long[] nulls = meta.nullBits(dataStruct);
+        for (int idf = 0; idf < columns.length; idf++)
+        {
+            Column column = columns[idf];
+            if (column == null)
+            {
+                continue;
+            }
+            boolean isNull = StructMeta.isSet(nulls, idf);
+            switch (meta.getType(idf))
+            {
+                case StructMeta.TYPE_STRING:
+                    ((StringColumn) column).set(size, meta.getString(dataStruct, idf));
+                    break;
+                case StructMeta.TYPE_INT:
+                    ((IntColumn) column).values[size] = isNull ? 0 : meta.getInt(dataStruct, idf);
+                    break;
+                case StructMeta.TYPE_DOUBLE:
+                    ((DoubleColumn) column).values[size] = isNull ? 0 : meta.getDouble(dataStruct, idf);
+                    break;
+                default:
+                    break;
+            }
+            if (isNull)
+            {
+                column.setNull(size);
+            }
+        }
+        size++;
+    }
+
+    /**
+     * Append all the rows of a ResultSet (columns by label, as DataCursor),
+     * without a DataStruct per row
+     * @param rset
+     * @return rows loaded
+     * @throws SQLException
+     */
+    public int load(ResultSet rset) throws SQLException
+    {
+        int[] cols = meta.resolveColumns(rset.getMetaData(), "");
+        int loaded = 0;
+        while (rset.next())
+        {
+            ensureCapacity();
+            for (int idf = 0; idf < columns.length; idf++)
+            {
+                Column column = columns[idf];
+                int col = cols[idf];
+                if (column == null)
+                {
+                    continue;
+                }
+                if (col == 0)
+                {
+                    // no column for the field: defined value, NULL
+                    unmapped(column, idf);
+                    continue;
+                }
+                switch (meta.getType(idf))
+                {
+                    case StructMeta.TYPE_STRING:
+                        String strVal = rset.getString(col);
+                        ((StringColumn) column).set(size, DataMirror.nvl(strVal));
+                        break;
+                    case StructMeta.TYPE_INT:
+                        ((IntColumn) column).values[size] = rset.getInt(col);
+                        break;
+                    case StructMeta.TYPE_DOUBLE:
+                        ((DoubleColumn) column).values[size] = rset.getDouble(col);
+                        break;
+                    default:
+                        break;
+                }
+                if (rset.wasNull())
+                {
+                    column.setNull(size);
+                }
+            }
+            size++;
+            loaded++;
+        }
+        return loaded;
+    }
+
+    private void unmapped(Column column, int idf)
+    {
+        switch (meta.getType(idf))
+        {
+            case StructMeta.TYPE_STRING:
+                ((StringColumn) column).set(size, "");
+                break;
+            case StructMeta.TYPE_INT:
+                ((IntColumn) column).values[size] = 0;
+                break;
+            case StructMeta.TYPE_DOUBLE:
+                ((DoubleColumn) column).values[size] = 0;
+                break;
+            default:
+                break;
+        }
+        column.setNull(size);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Position of a field (for the getters)
+     * @param field field name
+     * @return field position, -1 if not found
+     */
+    public int indexOf(String field)
+    {
+        return meta.indexOf(field);
+    }
+
+    public String getString(int row, int idf)
+    {
+        checkRow(row);
+        return ((StringColumn) columns[idf]).get(row);
+    }
+
+    public int getInt(int row, int idf)
+    {
+        checkRow(row);
+        return ((IntColumn) columns[idf]).values[row];
+    }
+
+    public double getDouble(int row, int idf)
+    {
+        checkRow(row);
+        return ((DoubleColumn) columns[idf]).values[row];
+    }
+
+    public boolean isNull(int row, int idf)
+    {
+        checkRow(row);
+        return columns[idf] != null && columns[idf].isNull(row);
+    }
+
+    /**
+     * String field still dictionary encoded
+     */
+    public boolean isDictionary(int idf)
+    {
+        return columns[idf] instanceof StringColumn && ((StringColumn) columns[idf]).codes != null;
+    }
+
+    /**
+     * Distinct values of a dictionary encoded field, by code
+     * @return values (copy), null if the field is not dictionary encoded
+     */
+    public String[] getDictionary(int idf)
+    {
+        if (!isDictionary(idf))
+        {
+            return null;
+        }
+        List<String> dictionary = ((StringColumn) columns[idf]).dictionary;
+        return dictionary.toArray(new String[dictionary.size()]);
+    }
+
+    /**
+     * Dictionary code of a value (group by, counting, filtering without strings)
+     * @return code, -1 if the field is not dictionary encoded
+     */
+    public int getCode(int row, int idf)
+    {
+        checkRow(row);
+        if (!isDictionary(idf))
+        {
+            return -1;
+        }
+        return ((StringColumn) columns[idf]).codes[row];
+    }
+
+    /**
+     * Load a row in a struct (flags as DataMirror.loadFromResultSetRow())
+     * @param row row position
+     * @param dataStruct struct to fill (may be reused)
+     * @return dataStruct
+     */
+    public DataStruct toStruct(int row, DataStruct dataStruct)
+    {
+        checkRow(row);
+        dataStruct.resetPresence();
+        for (int idf = 0; idf < columns.length; idf++)
+        {
+            Column column = columns[idf];
+            if (column == null)
+            {
+                continue;
+            }
+            switch (meta.getType(idf))
+            {
+                case StructMeta.TYPE_STRING:
+                    meta.set(dataStruct, idf, ((StringColumn) column).get(row));
+                    break;
+                case StructMeta.TYPE_INT:
+                    meta.setInt(dataStruct, idf, ((IntColumn) column).values[row]);
+                    break;
+                case StructMeta.TYPE_DOUBLE:
+                    meta.setDouble(dataStruct, idf, ((DoubleColumn) column).values[row]);
+                    break;
+                default:
+                    break;
+            }
+            DataMirror.markLoaded(dataStruct, idf, column.isNull(row));
+        }
+        return dataStruct;
+    }
+
+    /**
+     * Load a row in a new struct
+     * @param row row position
+     * @return new struct, null if the class can't be instantiated
+     */
+    public DataStruct toStruct(int row)
+    {
+        DataStruct dataStruct = meta.newInstance();
+        if (dataStruct == null)
+        {
+            return null;
+        }
+        return toStruct(row, dataStruct);
+    }
+
+    private void checkRow(int row)
+    {
+        if (row < 0 || row >= size)
+        {
+            throw new IndexOutOfBoundsException("Row: " + row + ", size: " + size);
+        }
+    }
+
+    private void ensureCapacity()
+    {
+        if (size < capacity)
+        {
+            return;
+        }
+        capacity = capacity + (capacity >> 1);
+        for (int idf = 0; idf < columns.length; idf++)
+        {
+            if (columns[idf] != null)
+            {
+                columns[idf].grow(capacity);
+            }
+        }
+    }
+
+    /**
+     * Values of a field, with NULL flags
+     */
+    private abstract static class Column
+    {
+
+        long[] nulls;
+
+        Column(int capacity)
+        {
+            nulls = new long[(capacity + 63) >>> 6];
+        }
+
+        void grow(int capacity)
+        {
+            nulls = Arrays.copyOf(nulls, (capacity + 63) >>> 6);
+        }
+
+        void setNull(int row)
+        {
+            nulls[row >>> 6] |= 1L << row;
+        }
+
+        boolean isNull(int row)
+        {
+            return (nulls[row >>> 6] & (1L << row)) != 0;
+        }
+    }
+
+    private static class IntColumn extends Column
+    {
+
+        int[] values;
+
+        IntColumn(int capacity)
+        {
+            super(capacity);
+            values = new int[capacity];
+        }
+
+        @Override
+        void grow(int capacity)
+        {
+            super.grow(capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    private static class DoubleColumn extends Column
+    {
+
+        double[] values;
+
+        DoubleColumn(int capacity)
+        {
+            super(capacity);
+            values = new double[capacity];
+        }
+
+        @Override
+        void grow(int capacity)
+        {
+            super.grow(capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    /**
+     * Dictionary encoded (codes + dictionary), plain values once the dictionary is full
+     */
+    private class StringColumn extends Column
+    {
+
+        int[] codes;
+        List<String> dictionary = new ArrayList<String>();
+        Map<String, Integer> lookup = new HashMap<String, Integer>();
+        String[] values;
+
+        StringColumn(int capacity)
+        {
+            super(capacity);
+            codes = new int[capacity];
+        }
+
+        @Override
+        void grow(int capacity)
+        {
+            super.grow(capacity);
+            if (codes != null)
+            {
+                codes = Arrays.copyOf(codes, capacity);
+            }
+            else
+            {
+                values = Arrays.copyOf(values, capacity);
+            }
+        }
+
+        void set(int row, String value)
+        {
+            if (codes == null)
+            {
+                values[row] = value;
+                return;
+            }
+            Integer code = lookup.get(value);
+            if (code == null)
+            {
+                if (dictionary.size() == maxDictionary)
+                {
+                    decode();
+                    values[row] = value;
+                    return;
+                }
+                code = Integer.valueOf(dictionary.size());
+                dictionary.add(value);
+                lookup.put(value, code);
+            }
+            codes[row] = code.intValue();
+        }
+
+        String get(int row)
+        {
+            return codes != null ? dictionary.get(codes[row]) : values[row];
+        }
+
+        /**
+         * High cardinality: back to plain values (still shared by the rows loaded so far)
+         */
+        private void decode()
+        {
+            values = new String[codes.length];
+            for (int row = 0; row < size; row++)
+            {
+                values[row] = dictionary.get(codes[row]);
+            }
+            codes = null;
+            dictionary = null;
+            lookup = null;
+        }
+    }
+}
@@ -0,0 +1,754 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * CSV import/export of DataStruct, on NIO channels.
+ * Columns are the struct fields ordered by name, or an explicit order (columns()).
+ * Input is parsed byte by byte from a direct buffer: only String fields build a String,
+ * so files are streamed in constant memory. Charset must be ASCII compatible
+ * (default DataMirror encoding, ISO-8859-15).
+ */
+public class DataCsv
+{
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    /**
+     * number of output buffers flushed with a single gathering write
+     */
+    private static final int OUT_BUFFERS = 4;
+    private final DataStruct dataStruct;
+    private final StructMeta meta;
+    /**
+     * field position for each CSV column, -1 to skip the column
+     */
+    private int[] columns;
+    private boolean explicitColumns = false;
+    private byte separator = ';';
+    private byte quote = '"';
+    private boolean header = false;
+    private Charset charset = Charset.forName(DataMirror.ENCODING);
+    private boolean italianDecimal = false;
+    private boolean italianDates = false;
+    /**
+     * String fields converted by italianDates (null: all of them)
+     */
+    private boolean[] dateFields = null;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    /**
+     * Callback for every record read
+     */
+    public interface RowHandler
+    {
+
+        /**
+         * @param dataStruct struct loaded from the record (reused by read(): copy it to keep the values)
+         */
+        public void row(DataStruct dataStruct) throws IOException;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param dataStruct struct loaded by read() (and model for readAll() instances)
+     */
+    public DataCsv(DataStruct dataStruct)
+    {
+        this.dataStruct = dataStruct;
+        this.meta = StructMeta.of(dataStruct);
+
+        List<Integer> fields = new ArrayList<Integer>();
+        for (int idf = 0; idf < meta.size(); idf++)
+        {
+            if (meta.getType(idf) != StructMeta.TYPE_OTHER)
+            {
+                fields.add(Integer.valueOf(idf));
+            }
+        }
+        columns = new int[fields.size()];
+        for (int col = 0; col < columns.length; col++)
+        {
+            columns[col] = fields.get(col).intValue();
+        }
+    }
+
+    /**
+     * Explicit column order; unknown names are skipped on read and written empty
+     * @param names field names
+     */
+    public DataCsv columns(String... names)
+    {
+        columns = new int[names.length];
+        for (int col = 0; col < names.length; col++)
+        {
+            columns[col] = indexOfColumn(names[col]);
+        }
+        explicitColumns = true;
+        return this;
+    }
+
+    public DataCsv separator(char separator)
+    {
+        this.separator = (byte) separator;
+        return this;
+    }
+
+    public DataCsv quote(char quote)
+    {
+        this.quote = (byte) quote;
+        return this;
+    }
+
+    /**
+     * First record is the header: written with field names, and on read it
+     * gives the column order (unless columns() is set)
+     */
+    public DataCsv header(boolean header)
+    {
+        this.header = header;
+        return this;
+    }
+
+    public DataCsv charset(String charsetName)
+    {
+        this.charset = Charset.forName(charsetName);
+        return this;
+    }
+
+    /**
+     * Write double values with ',' as decimal separator (read always accepts both, as gdv)
+     */
+    public DataCsv italianDecimal(boolean italianDecimal)
+    {
+        this.italianDecimal = italianDecimal;
+        return this;
+    }
+
+    /**
+     * Write DB dates (yyyyMMdd[HHmmss]) as dd/MM/yyyy; read keeps dd/MM/yyyy,
+     * converted by DataMirror.prepare().
+     * Any String field holding a valid date is converted: list the date fields
+     * with italianDates(String...) to leave codes of 8 or 14 digits unchanged
+     */
+    public DataCsv italianDates(boolean italianDates)
+    {
+        this.italianDates = italianDates;
+        this.dateFields = null;
+        return this;
+    }
+
+    /**
+     * Write the DB dates of the given String fields only as dd/MM/yyyy
+     * @param fields field names
+     */
+    public DataCsv italianDates(String... fields)
+    {
+        boolean[] dates = new boolean[meta.size()];
+        for (int idx = 0; idx < fields.length; idx++)
+        {
+            int idf = meta.indexOf(fields[idx]);
+            if (idf < 0 || meta.getType(idf) != StructMeta.TYPE_STRING)
+            {
+                throw new IllegalArgumentException("Unknown String field: " + fields[idx]);
+            }
+            dates[idf] = true;
+        }
+        this.italianDates = true;
+        this.dateFields = dates;
+        return this;
+    }
+
+    public DataCsv bufferSize(int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    private int indexOfColumn(String name)
+    {
+        int idf = meta.indexOf(name);
+        if (idf < 0)
+        {
+            String column = name.trim().toUpperCase();
+            for (int pos = 0; pos < meta.size(); pos++)
+            {
+                if (meta.getColumn(pos).equals(column))
+                {
+                    idf = pos;
+                    break;
+                }
+            }
+        }
+        if (idf >= 0 && meta.getType(idf) == StructMeta.TYPE_OTHER)
+        {
+            idf = -1;
+        }
+        return idf;
+    }
+
+    /**
+     * Read all records, loading the main DataStruct in place for each one
+     * @param channel input (usually a FileChannel)
+     * @param handler called for every record
+     * @return records read (header excluded)
+     * @throws IOException
+     */
+    public long read(ReadableByteChannel channel, RowHandler handler) throws IOException
+    {
+        return new Reader(handler, false).read(channel);
+    }
+
+    /**
+     * Read all records into new DataStruct instances
+     * @param channel input
+     * @return loaded structs
+     * @throws IOException
+     */
+    public List<DataStruct> readAll(ReadableByteChannel channel) throws IOException
+    {
+        final List<DataStruct> structs = new ArrayList<DataStruct>();
+        new Reader(new RowHandler()
+        {
+            public void row(DataStruct struct)
+            {
+                structs.add(struct);
+            }
+        }, true).read(channel);
+        return structs;
+    }
+
+    /**
+     * Write the structs
+     * @param channel output (usually a FileChannel)
+     * @param structs
+     * @return records written (header excluded)
+     * @throws IOException
+     */
+    public long write(GatheringByteChannel channel, Collection<? extends DataStruct> structs) throws IOException
+    {
+        return write(channel, structs.iterator());
+    }
+
+    public long write(GatheringByteChannel channel, Iterator<? extends DataStruct> structs) throws IOException
+    {
+        Writer writer = new Writer(channel);
+        if (header)
+        {
+            writer.writeHeader();
+        }
+        long count = 0;
+        while (structs.hasNext())
+        {
+            writer.writeRecord(structs.next());
+            count++;
+        }
+        writer.flush();
+        return count;
+    }
+
+    /**
+     * Write all the remaining rows of a cursor, without a DataStruct per row
+     * @return records written (header excluded)
+     */
+    public long write(GatheringByteChannel channel, DataCursor cursor) throws IOException, SQLException
+    {
+        Writer writer = new Writer(channel);
+        if (header)
+        {
+            writer.writeHeader();
+        }
+        long count = 0;
+        while (cursor.next())
+        {
+            writer.writeRecord(cursor.getData());
+            count++;
+        }
+        writer.flush();
+        return count;
+    }
+
+    /**
+     * Byte level CSV parser
+     */
+    private class Reader
+    {
+
+        private static final int FIELD_START = 0;
+        private static final int UNQUOTED = 1;
+        private static final int QUOTED = 2;
+        private static final int QUOTE_IN_QUOTED = 3;
+        private final RowHandler handler;
+        private final boolean newInstances;
+        private int[] readColumns;
+        private boolean headerPending;
+        private DataStruct struct;
+        private byte[] field = new byte[256];
+        private int fieldLen = 0;
+        private int column = 0;
+        private boolean recordStarted = false;
+        private int state = FIELD_START;
+        private List<String> headerNames;
+        private long count = 0;
+
+        Reader(RowHandler handler, boolean newInstances)
+        {
+            this.handler = handler;
+            this.newInstances = newInstances;
+            this.readColumns = columns;
+            this.headerPending = header;
+            this.struct = newInstances ? meta.newInstance() : dataStruct;
+            if (headerPending && !explicitColumns)
+            {
+                headerNames = new ArrayList<String>();
+            }
+        }
+
+        long read(ReadableByteChannel channel) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            while (channel.read(buffer) >= 0)
+            {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                {
+                    parse(buffer.get());
+                }
+                buffer.clear();
+            }
+            if (recordStarted)
+            {
+                endField();
+                endRecord();
+            }
+            return count;
+        }
+
+        private void parse(byte ch) throws IOException
+        {
+            switch (state)
+            {
+                case QUOTED:
+                    if (ch == quote)
+                    {
+                        state = QUOTE_IN_QUOTED;
+                    }
+                    else
+                    {
+                        append(ch);
+                    }
+                    return;
+                case QUOTE_IN_QUOTED:
+                    if (ch == quote)
+                    {
+                        // doubled quote
+                        append(ch);
+                        state = QUOTED;
+                        return;
+                    }
+                    state = UNQUOTED;
+                    break;
+                case FIELD_START:
+                    if (ch == quote)
+                    {
+                        recordStarted = true;
+                        state = QUOTED;
+                        return;
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            if (ch == separator)
+            {
+                recordStarted = true;
+                endField();
+            }
+            else if (ch == '\n')
+            {
+                if (recordStarted)
+                {
+                    endField();
+                    endRecord();
+                }
+            }
+            else if (ch != '\r')
+            {
+                recordStarted = true;
+                state = UNQUOTED;
+                append(ch);
+            }
+        }
+
+        private void append(byte ch)
+        {
+            if (fieldLen == field.length)
+            {
+                byte[] larger = new byte[field.length * 2];
+                System.arraycopy(field, 0, larger, 0, fieldLen);
+                field = larger;
+            }
+            field[fieldLen++] = ch;
+        }
+
+        private void endField()
+        {
+            if (headerNames != null)
+            {
+                headerNames.add(new String(field, 0, fieldLen, charset));
+            }
+            else if (!headerPending && column < readColumns.length && readColumns[column] >= 0)
+            {
+                setField(readColumns[column], field, fieldLen);
+            }
+            column++;
+            fieldLen = 0;
+            state = FIELD_START;
+        }
+
+        private void setField(int idf, byte[] value, int len)
+        {
+            switch (meta.getType(idf))
+            {
+                case StructMeta.TYPE_STRING:
+                    meta.set(struct, idf, len == 0 ? "" : meta.intern(idf, new String(value, 0, len, charset)));
+                    break;
+                case StructMeta.TYPE_INT:
+                    meta.setInt(struct, idf, ByteParser.parseInt(value, 0, len));
+                    break;
+                case StructMeta.TYPE_DOUBLE:
+                    meta.setDouble(struct, idf, ByteParser.parseDouble(value, 0, len, charset));
+                    break;
+                default:
+                    return;
+            }
+            // set or not by value (empty or not parsable: zero, not set)
+            struct.loadedValue(idf);
+        }
+
+        private void endRecord() throws IOException
+        {
+            if (headerPending)
+            {
+                if (headerNames != null)
+                {
+                    readColumns = new int[headerNames.size()];
+                    for (int col = 0; col < readColumns.length; col++)
+                    {
+                        readColumns[col] = indexOfColumn(headerNames.get(col));
+                    }
+                    headerNames = null;
+                }
+                headerPending = false;
+            }
+            else
+            {
+                // short record: reset the missing columns
+                for (int col = column; col < readColumns.length; col++)
+                {
+                    if (readColumns[col] >= 0)
+                    {
+                        setField(readColumns[col], field, 0);
+                    }
+                }
+                handler.row(struct);
+                count++;
+                if (newInstances)
+                {
+                    struct = meta.newInstance();
+                }
+            }
+            column = 0;
+            recordStarted = false;
+        }
+    }
+
+    /**
+     * Buffered CSV writer: records are encoded into direct buffers,
+     * flushed together with a gathering write
+     */
+    private class Writer
+    {
+
+        private final GatheringByteChannel channel;
+        private final ByteBuffer[] buffers = new ByteBuffer[OUT_BUFFERS];
+        private int current = 0;
+        private final byte[] digits = new byte[11];
+
+        Writer(GatheringByteChannel channel)
+        {
+            this.channel = channel;
+            int size = Math.max(bufferSize / OUT_BUFFERS, 1024);
+            for (int idx = 0; idx < OUT_BUFFERS; idx++)
+            {
+                buffers[idx] = ByteBuffer.allocateDirect(size);
+            }
+        }
+
+        void writeHeader() throws IOException
+        {
+            for (int col = 0; col < columns.length; col++)
+            {
+                if (col > 0)
+                {
+                    put(separator);
+                }
+                if (columns[col] >= 0)
+                {
+                    writeString(meta.getName(columns[col]));
+                }
+            }
+            put((byte) '\n');
+        }
+
+        void writeRecord(DataStruct struct) throws IOException
+        {
+            for (int col = 0; col < columns.length; col++)
+            {
+                if (col > 0)
+                {
+                    put(separator);
+                }
+                int idf = columns[col];
+                if (idf < 0)
+                {
+                    continue;
+                }
+                switch (meta.getType(idf))
+                {
+                    case StructMeta.TYPE_STRING:
+                        String strVal = meta.getString(struct, idf);
+                        if (strVal != null)
+                        {
+                            if (italianDates && (dateFields == null || dateFields[idf]))
+                            {
+                                strVal = dateDB2IT(strVal);
+                            }
+                            writeString(strVal);
+                        }
+                        break;
+                    case StructMeta.TYPE_INT:
+                        writeInt(meta.getInt(struct, idf));
+                        break;
+                    case StructMeta.TYPE_DOUBLE:
+                        writeDouble(meta.getDouble(struct, idf));
+                        break;
+                    default:
+                        break;
+                }
+            }
+            put((byte) '\n');
+        }
+
+        private void writeString(String strVal) throws IOException
+        {
+            int len = strVal.length();
+            boolean ascii = true;
+            boolean quoted = false;
+            for (int pos = 0; pos < len; pos++)
+            {
+                char ch = strVal.charAt(pos);
+                if (ch > 0x7f)
+                {
+                    ascii = false;
+                }
+                else if (ch == separator || ch == quote || ch == '\n' || ch == '\r')
+                {
+                    quoted = true;
+                }
+            }
+
+            if (quoted)
+            {
+                put(quote);
+            }
+            if (ascii)
+            {
+                for (int pos = 0; pos < len; pos++)
+                {
+                    byte ch = (byte) strVal.charAt(pos);
+                    if (ch == quote)
+                    {
+                        put(quote);
+                    }
+                    put(ch);
+                }
+            }
+            else
+            {
+                byte[] bytes = strVal.getBytes(charset);
+                for (int pos = 0; pos < bytes.length; pos++)
+                {
+                    if (bytes[pos] == quote)
+                    {
+                        put(quote);
+                    }
+                    put(bytes[pos]);
+                }
+            }
+            if (quoted)
+            {
+                put(quote);
+            }
+        }
+
+        private void writeInt(int intVal) throws IOException
+        {
+            if (intVal == Integer.MIN_VALUE)
+            {
+                writeString(Integer.toString(intVal));
+                return;
+            }
+            if (intVal < 0)
+            {
+                put((byte) '-');
+                intVal = -intVal;
+            }
+            int pos = digits.length;
+            do
+            {
+                digits[--pos] = (byte) ('0' + intVal % 10);
+                intVal /= 10;
+            }
+            while (intVal > 0);
+            for (; pos < digits.length; pos++)
+            {
+                put(digits[pos]);
+            }
+        }
+
+        private void writeDouble(double dblVal) throws IOException
+        {
+            String strVal = Double.toString(dblVal);
+            int len = strVal.length();
+            for (int pos = 0; pos < len; pos++)
+            {
+                byte ch = (byte) strVal.charAt(pos);
+                if (ch == '.' && italianDecimal)
+                {
+                    ch = ',';
+                }
+                put(ch);
+            }
+        }
+
+        private void put(byte ch) throws IOException
+        {
+            ByteBuffer buffer = buffers[current];
+            if (!buffer.hasRemaining())
+            {
+                current++;
+                if (current == OUT_BUFFERS)
+                {
+                    flush();
+                }
+                buffer = buffers[current];
+            }
+            buffer.put(ch);
+        }
+
+        void flush() throws IOException
+        {
+            int used = Math.min(current + 1, OUT_BUFFERS);
+            for (int idx = 0; idx < used; idx++)
+            {
+                buffers[idx].flip();
+            }
+            while (buffers[used - 1].hasRemaining())
+            {
+                channel.write(buffers, 0, used);
+            }
+            for (int idx = 0; idx < used; idx++)
+            {
+                buffers[idx].clear();
+            }
+            current = 0;
+        }
+    }
+
+    /**
+     * DB date (yyyyMMdd or yyyyMMddHHmmss) to dd/MM/yyyy, other values
+     * (invalid dates included) unchanged
+     */
+    private static String dateDB2IT(String strVal)
+    {
+        int len = strVal.length();
+        if (len != 8 && len != 14)
+        {
+            return strVal;
+        }
+        for (int pos = 0; pos < len; pos++)
+        {
+            char ch = strVal.charAt(pos);
+            if (ch < '0' || ch > '9')
+            {
+                return strVal;
+            }
+        }
+        int year = digits(strVal, 0, 4);
+        int month = digits(strVal, 4, 6);
+        int day = digits(strVal, 6, 8);
+        if (month < 1 || month > 12 || day < 1 || day > daysOfMonth(year, month))
+        {
+            return strVal;
+        }
+        if (len == 14 && (digits(strVal, 8, 10) > 23 || digits(strVal, 10, 12) > 59 || digits(strVal, 12, 14) > 59))
+        {
+            return strVal;
+        }
+        return strVal.substring(6, 8) + "/" + strVal.substring(4, 6) + "/" + strVal.substring(0, 4);
+    }
+
+    private static int digits(String strVal, int start, int end)
+    {
+        int value = 0;
+        for (int pos = start; pos < end; pos++)
+        {
+            value = value * 10 + (strVal.charAt(pos) - '0');
+        }
+        return value;
+    }
+
+    private static int daysOfMonth(int year, int month)
+    {
+        switch (month)
+        {
+            case 2:
+                return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+}
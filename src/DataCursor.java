@@ -0,0 +1,173 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Read-only cursor over a ResultSet (flyweight).
+ * A single DataStruct is reloaded in place on every next(): the struct
+ * returned by getData() is valid only until the following next() call.
+ */
+public class DataCursor
+{
+
+    private final ResultSet rset;
+    private final DataStruct dataStruct;
+    private final DataMirror mirror;
+    private final StructMeta meta;
+    /**
+     * ResultSet column index for each field, 0 if missing (resolved on first row)
+     */
+    private int[] columns;
+    private int row = 0;
+    private FetchTuner tuner = null;
+
+    /**
+     * Constructor
+     *
+     * @param dataStruct struct reused for every row
+     * @param rset ResultSet to read
+     */
+    public DataCursor(DataStruct dataStruct, ResultSet rset)
+    {
+        this.rset = rset;
+        this.dataStruct = dataStruct;
+        this.mirror = DataMirror.on(dataStruct);
+        this.meta = StructMeta.of(dataStruct);
+    }
+
+    /**
+     * Fetch size controller (e.g. FetchTuner.forColumns()): without it the
+     * fetch size of the ResultSet is left as set by the caller
+     */
+    public DataCursor fetchTuner(FetchTuner tuner)
+    {
+        this.tuner = tuner;
+        return this;
+    }
+
+    /**
+     * Move to the next row and reload the struct
+     * @return false when the ResultSet is exhausted
+     * @throws SQLException
+     */
+    public boolean next() throws SQLException
+    {
+        if (!advance())
+        {
+            return false;
+        }
+        load(dataStruct);
+        if (tuner != null)
+        {
+            tuner.loaded(dataStruct);
+        }
+        row++;
+        return true;
+    }
+
+    /**
+     * Move to the next row and load it in a new struct (not reused, as getData())
+     * @return new struct, null when the ResultSet is exhausted
+     * @throws SQLException
+     */
+    public DataStruct read() throws SQLException
+    {
+        if (!advance())
+        {
+            return null;
+        }
+        DataStruct struct = meta.newInstance();
+        if (struct == null)
+        {
+            throw new IllegalStateException("No empty constructor: " + meta.getStructClass().getName());
+        }
+        load(struct);
+        if (tuner != null)
+        {
+            tuner.loaded(struct);
+        }
+        row++;
+        return struct;
+    }
+
+    private boolean advance() throws SQLException
+    {
+        if (columns == null)
+        {
+            columns = meta.resolveColumns(rset.getMetaData(), "");
+        }
+        return tuner == null ? rset.next() : tuner.next(rset);
+    }
+
+    private void load(DataStruct struct)
+    {
+        meta.load(struct, rset, columns);
+    }
+
+    /**
+     * Current struct (reused: copy it to keep the values)
+     */
+    public DataStruct getData()
+    {
+        return dataStruct;
+    }
+
+    /**
+     * Mirror on the current struct
+     */
+    public DataMirror getMirror()
+    {
+        return mirror;
+    }
+
+    /**
+     * Rows read so far
+     */
+    public int getRow()
+    {
+        return row;
+    }
+
+    public Map asMap()
+    {
+        return mirror.asMap();
+    }
+
+    public String asJSON()
+    {
+        return mirror.asJSON();
+    }
+
+    public String asQueryString()
+    {
+        return mirror.asQueryString();
+    }
+
+    public void close() throws SQLException
+    {
+        if (tuner != null)
+        {
+            tuner.finish();
+        }
+        rset.close();
+    }
+}
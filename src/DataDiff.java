@@ -0,0 +1,823 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mirror a source collection of DataStruct onto a target one (same class):
+ * hash join on the key fields, field by field comparison, insert/update/delete changes.
+ * When the target side has more than memoryRows structs, both sides are
+ * partitioned by key hash on temporary files and joined one partition at a time.
+ */
+public class DataDiff
+{
+
+    public static final int INSERT = 1;
+    public static final int UPDATE = 2;
+    public static final int DELETE = 3;
+    public static final int DEFAULT_MEMORY_ROWS = 100000;
+    /**
+     * partitions for each spill level
+     */
+    private static final int FAN_OUT = 16;
+    /**
+     * max spill levels (beyond it the partition is joined in memory anyway)
+     */
+    private static final int MAX_DEPTH = 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final StructMeta meta;
+    private int[] keys;
+    /**
+     * String/int/double fields: compared, spilled and written
+     */
+    private final int[] values;
+    private int memoryRows = DEFAULT_MEMORY_ROWS;
+    private File tempDir = null;
+
+    /**
+     * Receiver of the changes
+     */
+    public interface ChangeHandler
+    {
+
+        /**
+         * @param type INSERT, UPDATE, DELETE
+         * @param source new values (null for DELETE)
+         * @param target current values (null for INSERT)
+         */
+        public void change(int type, DataStruct source, DataStruct target) throws SQLException;
+    }
+
+    /**
+     * Internal stream of structs (null at the end)
+     */
+    private interface Source
+    {
+
+        public DataStruct next() throws IOException;
+
+        public void close() throws IOException;
+    }
+
+    /**
+     * Constructor, with the PKID field(s) as key
+     *
+     * @param dataStruct model of the compared structs
+     */
+    public DataDiff(DataStruct dataStruct)
+    {
+        this.meta = StructMeta.of(dataStruct);
+
+        List<Integer> valueFields = new ArrayList<Integer>();
+        for (int idf = 0; idf < meta.size(); idf++)
+        {
+            if (meta.getType(idf) != StructMeta.TYPE_OTHER)
+            {
+                valueFields.add(Integer.valueOf(idf));
+            }
+        }
+        values = new int[valueFields.size()];
+        for (int idx = 0; idx < values.length; idx++)
+        {
+            values[idx] = valueFields.get(idx).intValue();
+        }
+        keys = meta.keyFields();
+    }
+
+    /**
+     * Declared key fields (instead of PKID)
+     * @param fields field names
+     */
+    public DataDiff keys(String... fields)
+    {
+        keys = meta.keyFields(fields);
+        return this;
+    }
+
+    /**
+     * Max structs of the target side kept in memory, before spilling to disk
+     */
+    public DataDiff memoryRows(int memoryRows)
+    {
+        this.memoryRows = memoryRows;
+        return this;
+    }
+
+    /**
+     * Directory of the spill files (default java.io.tmpdir)
+     */
+    public DataDiff tempDir(File tempDir)
+    {
+        this.tempDir = tempDir;
+        return this;
+    }
+
+    /**
+     * Compare two collections
+     * @return collected changes
+     */
+    public ChangeSet diff(Collection<? extends DataStruct> source, Collection<? extends DataStruct> target) throws IOException, SQLException
+    {
+        ChangeSet changes = new ChangeSet();
+        diff(source.iterator(), target.iterator(), changes);
+        return changes;
+    }
+
+    /**
+     * Compare two streams, sending the changes to the handler.
+     * Every struct must be a distinct instance (no DataCursor)
+     * @throws IllegalArgumentException duplicate key in the source or target stream
+     * @param source new values
+     * @param target current values
+     * @param handler
+     */
+    public void diff(Iterator<? extends DataStruct> source, Iterator<? extends DataStruct> target, ChangeHandler handler) throws IOException, SQLException
+    {
+        if (keys.length == 0)
+        {
+            throw new IllegalStateException("No key fields for " + meta.getStructClass().getName());
+        }
+        join(new IteratorSource(source), new IteratorSource(target), handler, 0);
+    }
+
+    /**
+     * Batch writer of the changes on a table
+     * @param conn
+     * @param table target table
+     * @param batchSize statements for each executeBatch()
+     */
+    public BatchWriter batchWriter(Connection conn, String table, int batchSize)
+    {
+        return new BatchWriter(conn, table, batchSize);
+    }
+
+    private void join(Source source, Source target, ChangeHandler handler, int depth) throws IOException, SQLException
+    {
+        Map<Object, DataStruct> build = new HashMap<Object, DataStruct>();
+        DataStruct struct = target.next();
+        while (struct != null && (build.size() < memoryRows || depth >= MAX_DEPTH))
+        {
+            Object key = meta.key(struct, keys);
+            if (build.put(key, struct) != null)
+            {
+                throw new IllegalArgumentException("Duplicate key in target: " + key);
+            }
+            struct = target.next();
+        }
+
+        if (struct != null)
+        {
+            spill(source, target, build, struct, handler, depth);
+            return;
+        }
+
+        // probe
+        Set<Object> probed = new HashSet<Object>();
+        while ((struct = source.next()) != null)
+        {
+            Object key = meta.key(struct, keys);
+            if (!probed.add(key))
+            {
+                throw new IllegalArgumentException("Duplicate key in source: " + key);
+            }
+            DataStruct current = build.remove(key);
+            if (current == null)
+            {
+                handler.change(INSERT, struct, null);
+            }
+            else if (!same(struct, current))
+            {
+                handler.change(UPDATE, struct, current);
+            }
+        }
+
+        Iterator<DataStruct> deleted = build.values().iterator();
+        while (deleted.hasNext())
+        {
+            handler.change(DELETE, null, deleted.next());
+        }
+    }
+
+    /**
+     * Partition both sides on disk, then join each partition
+     */
+    private void spill(Source source, Source target, Map<Object, DataStruct> build, DataStruct pending,
+            ChangeHandler handler, int depth) throws IOException, SQLException
+    {
+        Spill[] targetParts = new Spill[FAN_OUT];
+        Spill[] sourceParts = new Spill[FAN_OUT];
+        try
+        {
+            for (int part = 0; part < FAN_OUT; part++)
+            {
+                targetParts[part] = new Spill();
+                sourceParts[part] = new Spill();
+            }
+
+            Iterator<Map.Entry<Object, DataStruct>> loaded = build.entrySet().iterator();
+            while (loaded.hasNext())
+            {
+                Map.Entry<Object, DataStruct> entry = loaded.next();
+                targetParts[partition(entry.getKey(), depth)].write(entry.getValue());
+            }
+            build.clear();
+
+            DataStruct struct = pending;
+            while (struct != null)
+            {
+                targetParts[partition(meta.key(struct, keys), depth)].write(struct);
+                struct = target.next();
+            }
+            while ((struct = source.next()) != null)
+            {
+                sourceParts[partition(meta.key(struct, keys), depth)].write(struct);
+            }
+
+            for (int part = 0; part < FAN_OUT; part++)
+            {
+                if (!sourceParts[part].isEmpty() || !targetParts[part].isEmpty())
+                {
+                    Source sourceReader = null;
+                    Source targetReader = null;
+                    try
+                    {
+                        sourceReader = sourceParts[part].reader();
+                        targetReader = targetParts[part].reader();
+                        join(sourceReader, targetReader, handler, depth + 1);
+                    }
+                    finally
+                    {
+                        if (sourceReader != null)
+                        {
+                            sourceReader.close();
+                        }
+                        if (targetReader != null)
+                        {
+                            targetReader.close();
+                        }
+                    }
+                }
+                sourceParts[part].delete();
+                targetParts[part].delete();
+            }
+        }
+        finally
+        {
+            for (int part = 0; part < FAN_OUT; part++)
+            {
+                if (targetParts[part] != null)
+                {
+                    targetParts[part].delete();
+                }
+                if (sourceParts[part] != null)
+                {
+                    sourceParts[part].delete();
+                }
+            }
+        }
+    }
+
+    private static int partition(Object key, int depth)
+    {
+        // murmur3 finalizer, salted by level
+        int hash = key.hashCode() + depth * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash & (FAN_OUT - 1);
+    }
+
+    /**
+     * Field by field comparison (null String equals "", NULL differs from 0 and "")
+     */
+    private boolean same(DataStruct source, DataStruct target)
+    {
+        long[] srcNulls = meta.nullBits(source);
+        long[] tgtNulls = meta.nullBits(target);
+        for (int idx = 0; idx < values.length; idx++)
+        {
+            int idf = values[idx];
+            boolean srcNull = StructMeta.isSet(srcNulls, idf);
+            if (srcNull != StructMeta.isSet(tgtNulls, idf))
+            {
+                return false;
+            }
+            if (srcNull)
+            {
+                continue;
+            }
+            switch (meta.getType(idf))
+            {
+                case StructMeta.TYPE_STRING:
+                    String strSource = DataMirror.nvl(meta.getString(source, idf));
+                    String strTarget = DataMirror.nvl(meta.getString(target, idf));
+                    if (!strSource.equals(strTarget))
+                    {
+                        return false;
+                    }
+                    break;
+                case StructMeta.TYPE_INT:
+                    if (meta.getInt(source, idf) != meta.getInt(target, idf))
+                    {
+                        return false;
+                    }
+                    break;
+                case StructMeta.TYPE_DOUBLE:
+                    double dblSource = meta.getDouble(source, idf);
+                    double dblTarget = meta.getDouble(target, idf);
+                    if (dblSource != dblTarget && !(Double.isNaN(dblSource) && Double.isNaN(dblTarget)))
+                    {
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private static class IteratorSource implements Source
+    {
+
+        private final Iterator<? extends DataStruct> iterator;
+
+        IteratorSource(Iterator<? extends DataStruct> iterator)
+        {
+            this.iterator = iterator;
+        }
+
+        public DataStruct next()
+        {
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * Spill file of structs (NULL flags and value fields)
+     */
+    private class Spill
+    {
+
+        private File file = null;
+        private DataOutputStream out = null;
+        private int count = 0;
+
+        void write(DataStruct struct) throws IOException
+        {
+            if (file == null)
+            {
+                // created on first write: most partitions of small joins stay empty
+                file = File.createTempFile("datadiff", ".spill", tempDir);
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            }
+            long[] nulls = meta.nullBits(struct);
+            for (int word = 0; word < nulls.length; word++)
+            {
+                out.writeLong(nulls[word]);
+            }
+            for (int idx = 0; idx < values.length; idx++)
+            {
+                int idf = values[idx];
+                switch (meta.getType(idf))
+                {
+                    case StructMeta.TYPE_STRING:
+                        String strVal = meta.getString(struct, idf);
+                        if (strVal == null)
+                        {
+                            out.writeInt(-1);
+                        }
+                        else
+                        {
+                            byte[] bytes = strVal.getBytes(UTF8);
+                            out.writeInt(bytes.length);
+                            out.write(bytes);
+                        }
+                        break;
+                    case StructMeta.TYPE_INT:
+                        out.writeInt(meta.getInt(struct, idf));
+                        break;
+                    case StructMeta.TYPE_DOUBLE:
+                        out.writeDouble(meta.getDouble(struct, idf));
+                        break;
+                    default:
+                        break;
+                }
+            }
+            count++;
+        }
+
+        boolean isEmpty()
+        {
+            return count == 0;
+        }
+
+        Source reader() throws IOException
+        {
+            if (file == null)
+            {
+                return new IteratorSource(new ArrayList<DataStruct>(0).iterator());
+            }
+            out.close();
+            out = null;
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            final int total = count;
+            return new Source()
+            {
+                private int read = 0;
+
+                public DataStruct next() throws IOException
+                {
+                    if (read == total)
+                    {
+                        return null;
+                    }
+                    read++;
+                    return readStruct(in);
+                }
+
+                public void close() throws IOException
+                {
+                    in.close();
+                }
+            };
+        }
+
+        private DataStruct readStruct(DataInputStream in) throws IOException
+        {
+            DataStruct struct = meta.newInstance();
+            long[] nulls = new long[(meta.size() + 63) >>> 6];
+            for (int word = 0; word < nulls.length; word++)
+            {
+                nulls[word] = in.readLong();
+            }
+            for (int idx = 0; idx < values.length; idx++)
+            {
+                int idf = values[idx];
+                switch (meta.getType(idf))
+                {
+                    case StructMeta.TYPE_STRING:
+                        int len = in.readInt();
+                        if (len >= 0)
+                        {
+                            byte[] bytes = new byte[len];
+                            in.readFully(bytes);
+                            meta.set(struct, idf, new String(bytes, UTF8));
+                        }
+                        else
+                        {
+                            meta.set(struct, idf, null);
+                        }
+                        break;
+                    case StructMeta.TYPE_INT:
+                        meta.setInt(struct, idf, in.readInt());
+                        break;
+                    case StructMeta.TYPE_DOUBLE:
+                        meta.setDouble(struct, idf, in.readDouble());
+                        break;
+                    default:
+                        break;
+                }
+            }
+            for (int idf = StructMeta.nextSet(nulls, 0); idf >= 0; idf = StructMeta.nextSet(nulls, idf + 1))
+            {
+                struct.loadedNull(idf);
+            }
+            return struct;
+        }
+
+        void delete() throws IOException
+        {
+            if (out != null)
+            {
+                out.close();
+                out = null;
+            }
+            if (file != null)
+            {
+                file.delete();
+                file = null;
+            }
+        }
+    }
+
+    /**
+     * Changes collected in memory
+     */
+    public static class ChangeSet implements ChangeHandler
+    {
+
+        private final List<DataStruct> inserts = new ArrayList<DataStruct>();
+        private final List<DataStruct> updates = new ArrayList<DataStruct>();
+        private final List<DataStruct> deletes = new ArrayList<DataStruct>();
+
+        public void change(int type, DataStruct source, DataStruct target)
+        {
+            switch (type)
+            {
+                case INSERT:
+                    inserts.add(source);
+                    break;
+                case UPDATE:
+                    updates.add(source);
+                    break;
+                case DELETE:
+                    deletes.add(target);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Source structs missing on target
+         */
+        public List<DataStruct> getInserts()
+        {
+            return inserts;
+        }
+
+        /**
+         * Source structs with different values on target
+         */
+        public List<DataStruct> getUpdates()
+        {
+            return updates;
+        }
+
+        /**
+         * Target structs missing on source
+         */
+        public List<DataStruct> getDeletes()
+        {
+            return deletes;
+        }
+
+        public boolean isEmpty()
+        {
+            return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+        }
+    }
+
+    /**
+     * Apply the changes to a table with JDBC batches:
+     * INSERT of all fields, UPDATE of the non key fields, DELETE by key.
+     * Call flush() at the end
+     */
+    public class BatchWriter implements ChangeHandler
+    {
+
+        private final Connection conn;
+        private final String table;
+        private final int batchSize;
+        private final PreparedStatement[] statements = new PreparedStatement[DELETE + 1];
+        private final int[] pending = new int[DELETE + 1];
+
+        /**
+         * Constructor
+         *
+         * @param conn
+         * @param table target table
+         * @param batchSize statements for each executeBatch()
+         */
+        public BatchWriter(Connection conn, String table, int batchSize)
+        {
+            this.conn = conn;
+            this.table = table;
+            this.batchSize = batchSize;
+        }
+
+        public void change(int type, DataStruct source, DataStruct target) throws SQLException
+        {
+            PreparedStatement prstm = statements[type];
+            if (prstm == null)
+            {
+                prstm = conn.prepareStatement(sql(type));
+                statements[type] = prstm;
+            }
+
+            int pos = 1;
+            long[] srcNulls = source == null ? null : meta.nullBits(source);
+            long[] tgtNulls = target == null ? null : meta.nullBits(target);
+            switch (type)
+            {
+                case INSERT:
+                    for (int idx = 0; idx < values.length; idx++)
+                    {
+                        bindField(prstm, pos++, source, srcNulls, values[idx]);
+                    }
+                    break;
+                case UPDATE:
+                    for (int idx = 0; idx < values.length; idx++)
+                    {
+                        if (!isKey(values[idx]))
+                        {
+                            bindField(prstm, pos++, source, srcNulls, values[idx]);
+                        }
+                    }
+                    for (int idk = 0; idk < keys.length; idk++)
+                    {
+                        bindField(prstm, pos++, target, tgtNulls, keys[idk]);
+                    }
+                    break;
+                case DELETE:
+                    for (int idk = 0; idk < keys.length; idk++)
+                    {
+                        bindField(prstm, pos++, target, tgtNulls, keys[idk]);
+                    }
+                    break;
+                default:
+                    return;
+            }
+
+            prstm.addBatch();
+            pending[type]++;
+            if (pending[type] >= batchSize)
+            {
+                prstm.executeBatch();
+                pending[type] = 0;
+            }
+        }
+
+        /**
+         * Execute the pending batches (deletes first) and close the statements
+         */
+        public void flush() throws SQLException
+        {
+            int[] order =
+            {
+                DELETE, UPDATE, INSERT
+            };
+            try
+            {
+                for (int idx = 0; idx < order.length; idx++)
+                {
+                    int type = order[idx];
+                    if (statements[type] != null && pending[type] > 0)
+                    {
+                        statements[type].executeBatch();
+                        pending[type] = 0;
+                    }
+                }
+            }
+            finally
+            {
+                for (int type = 0; type < statements.length; type++)
+                {
+                    if (statements[type] != null)
+                    {
+                        statements[type].close();
+                        statements[type] = null;
+                    }
+                }
+            }
+        }
+
+        private boolean isKey(int idf)
+        {
+            for (int idk = 0; idk < keys.length; idk++)
+            {
+                if (keys[idk] == idf)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private String sql(int type)
+        {
+            StringBuffer sql = new StringBuffer(200);
+            if (type == INSERT)
+            {
+                StringBuffer params = new StringBuffer(50);
+                sql.append("INSERT INTO ").append(table).append(" (");
+                for (int idx = 0; idx < values.length; idx++)
+                {
+                    if (idx > 0)
+                    {
+                        sql.append(", ");
+                        params.append(", ");
+                    }
+                    sql.append(meta.getColumn(values[idx]));
+                    params.append('?');
+                }
+                sql.append(") VALUES (").append(params).append(')');
+                return sql.toString();
+            }
+
+            if (type == UPDATE)
+            {
+                sql.append("UPDATE ").append(table).append(" SET ");
+                boolean first = true;
+                for (int idx = 0; idx < values.length; idx++)
+                {
+                    if (!isKey(values[idx]))
+                    {
+                        if (!first)
+                        {
+                            sql.append(", ");
+                        }
+                        sql.append(meta.getColumn(values[idx])).append(" = ?");
+                        first = false;
+                    }
+                }
+            }
+            else
+            {
+                sql.append("DELETE FROM ").append(table);
+            }
+
+            sql.append(" WHERE ");
+            for (int idk = 0; idk < keys.length; idk++)
+            {
+                if (idk > 0)
+                {
+                    sql.append(" AND ");
+                }
+                sql.append(meta.getColumn(keys[idk])).append(" = ?");
+            }
+            return sql.toString();
+        }
+
+        private void bindField(PreparedStatement prstm, int pos, DataStruct struct, long[] nulls, int idf) throws SQLException
+        {
+            boolean isNull = StructMeta.isSet(nulls, idf);
+            switch (meta.getType(idf))
+            {
+                case StructMeta.TYPE_INT:
+                    if (isNull)
+                    {
+                        prstm.setNull(pos, Types.INTEGER);
+                    }
+                    else
+                    {
+                        prstm.setInt(pos, meta.getInt(struct, idf));
+                    }
+                    break;
+                case StructMeta.TYPE_DOUBLE:
+                    if (isNull)
+                    {
+                        prstm.setNull(pos, Types.DOUBLE);
+                    }
+                    else
+                    {
+                        prstm.setDouble(pos, meta.getDouble(struct, idf));
+                    }
+                    break;
+                default:
+                    if (isNull)
+                    {
+                        prstm.setNull(pos, Types.VARCHAR);
+                    }
+                    else
+                    {
+                        prstm.setString(pos, DataMirror.nvl(meta.getString(struct, idf)));
+                    }
+                    break;
+            }
+        }
+    }
+}
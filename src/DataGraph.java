@@ -0,0 +1,238 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parent/child graph loader from a single joined ResultSet (no query per parent).
+ * Each struct type reads its own columns, named prefix + field name (e.g. ORD_CODE, LIN_QTY);
+ * parents are deduplicated by key, children by key within their parent, and appended
+ * to a List field of the parent, in one pass over the rows (ResultSet order kept).
+ * Keys are the PKID field(s) by default; a child with all key columns NULL (LEFT JOIN
+ * without children) is skipped. Children can have children (child() returns the child node).
+ * <pre>
+ * SELECT O.ORDPKID ORD_ORDPKID, O.CUSTOMER ORD_CUSTOMER, L.LINPKID LIN_LINPKID, L.QTY LIN_QTY
+ *   FROM ORDERS O LEFT JOIN LINES L ON L.ORDPKID = O.ORDPKID
+ *
+ * DataGraph graph = new DataGraph(new Order(), "ORD_");
+ * graph.child("lines", new Line(), "LIN_");
+ * List&lt;DataStruct&gt; orders = graph.load(rset);
+ * </pre>
+ * Structs of the result serialize as nested JSON (asJSON(), JsonEncoder).
+ * Not thread safe: one load at a time.
+ */
+public class DataGraph
+{
+
+    private final StructMeta meta;
+    private final String prefix;
+    private final DataGraph parent;
+    /**
+     * List field of the parent, -1 for the root
+     */
+    private final int parentField;
+    private int[] keys;
+    private final List<DataGraph> children = new ArrayList<DataGraph>();
+    /**
+     * ResultSet column for each field, 0 if missing (resolved on load)
+     */
+    private int[] columns;
+    /**
+     * structs already loaded, by parent (root: null parent), by key
+     */
+    private final Map<DataStruct, Map<Object, DataStruct>> loaded = new IdentityHashMap<DataStruct, Map<Object, DataStruct>>();
+
+    /**
+     * Root of a graph
+     *
+     * @param model struct class of the parents
+     * @param prefix column prefix of the parent fields ("" for none)
+     */
+    public DataGraph(DataStruct model, String prefix)
+    {
+        this(StructMeta.of(model), prefix, null, -1);
+    }
+
+    private DataGraph(StructMeta meta, String prefix, DataGraph parent, int parentField)
+    {
+        this.meta = meta;
+        this.prefix = prefix == null ? "" : prefix.toUpperCase();
+        this.parent = parent;
+        this.parentField = parentField;
+        this.keys = meta.keyFields();
+    }
+
+    /**
+     * Key fields (default PKID)
+     */
+    public DataGraph keys(String... fields)
+    {
+        keys = meta.keyFields(fields);
+        return this;
+    }
+
+    /**
+     * Declare a child type
+     * @param listField public List field of this struct receiving the children
+     * @param model struct class of the children
+     * @param prefix column prefix of the child fields
+     * @return the child node (to declare its keys or children)
+     */
+    public DataGraph child(String listField, DataStruct model, String prefix)
+    {
+        int idf = meta.indexOf(listField);
+        if (idf < 0 || !List.class.isAssignableFrom(meta.getField(idf).getType()))
+        {
+            throw new IllegalArgumentException("Not a List field: " + listField);
+        }
+        DataGraph child = new DataGraph(StructMeta.of(model), prefix, this, idf);
+        children.add(child);
+        return child;
+    }
+
+    /**
+     * Load the graph from the rows of a joined query (ResultSet not closed)
+     * @param rset
+     * @return parents with their children, in order of first appearance
+     * @throws SQLException
+     */
+    public List<DataStruct> load(ResultSet rset) throws SQLException
+    {
+        return load(rset, null);
+    }
+
+    /**
+     * Load the graph, with a fetch size controller
+     * @param rset
+     * @param tuner fetch size controller (e.g. FetchTuner.forColumns()), null to leave the fetch size as set
+     * @return parents with their children, in order of first appearance
+     * @throws SQLException
+     */
+    public List<DataStruct> load(ResultSet rset, FetchTuner tuner) throws SQLException
+    {
+        if (parent != null)
+        {
+            return parent.load(rset, tuner);
+        }
+
+        resolve(rset.getMetaData());
+        List<DataStruct> roots = new ArrayList<DataStruct>();
+        try
+        {
+            while (tuner == null ? rset.next() : tuner.next(rset))
+            {
+                DataStruct root = visit(rset, null, roots);
+                if (root != null && tuner != null)
+                {
+                    tuner.loaded(root);
+                }
+            }
+        }
+        finally
+        {
+            clear();
+        }
+        return roots;
+    }
+
+    /**
+     * Column indexes of this node and its children
+     */
+    private void resolve(ResultSetMetaData rsmd) throws SQLException
+    {
+        if (keys.length == 0)
+        {
+            throw new IllegalStateException("No key fields: " + meta.getStructClass().getName());
+        }
+        columns = meta.resolveColumns(rsmd, prefix);
+        for (int idk = 0; idk < keys.length; idk++)
+        {
+            if (columns[keys[idk]] == 0)
+            {
+                throw new SQLException("Key column not found: " + prefix + meta.getColumn(keys[idk]));
+            }
+        }
+        for (DataGraph child : children)
+        {
+            child.resolve(rsmd);
+        }
+    }
+
+    /**
+     * Struct of this node in the current row: found by key, or loaded and added to the list
+     * @param owner parent struct (null for the root)
+     * @param list where new structs are added
+     * @return struct, null if all the key columns are NULL
+     */
+    private DataStruct visit(ResultSet rset, DataStruct owner, List list) throws SQLException
+    {
+        Object key = meta.key(rset, columns, keys);
+        if (key == null)
+        {
+            return null;
+        }
+
+        Map<Object, DataStruct> seen = loaded.get(owner);
+        if (seen == null)
+        {
+            seen = new HashMap<Object, DataStruct>();
+            loaded.put(owner, seen);
+        }
+        DataStruct struct = seen.get(key);
+        if (struct == null)
+        {
+            struct = meta.newInstance();
+            if (struct == null)
+            {
+                throw new IllegalStateException("No empty constructor: " + meta.getStructClass().getName());
+            }
+            meta.load(struct, rset, columns);
+            seen.put(key, struct);
+            list.add(struct);
+        }
+
+        for (DataGraph child : children)
+        {
+            List childList = (List) meta.get(struct, child.parentField);
+            if (childList == null)
+            {
+                childList = new ArrayList();
+                meta.set(struct, child.parentField, childList);
+            }
+            child.visit(rset, struct, childList);
+        }
+        return struct;
+    }
+
+    private void clear()
+    {
+        loaded.clear();
+        for (DataGraph child : children)
+        {
+            child.clear();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of the mirror components (counters and gauges by name), thread safe.
+ * Names are dotted, e.g. "cache.province.staleness"
+ */
+public final class DataMetrics
+{
+
+    /**
+     * Value computed when read
+     */
+    public interface Gauge
+    {
+
+        public long value();
+    }
+    private static final ConcurrentHashMap<String, AtomicLong> COUNTERS = new ConcurrentHashMap<String, AtomicLong>();
+    private static final Map<String, Gauge> GAUGES = new ConcurrentHashMap<String, Gauge>();
+
+    private DataMetrics()
+    {
+    }
+
+    private static AtomicLong counter(String name)
+    {
+        AtomicLong counter = COUNTERS.get(name);
+        if (counter == null)
+        {
+            counter = new AtomicLong();
+            AtomicLong previous = COUNTERS.putIfAbsent(name, counter);
+            if (previous != null)
+            {
+                counter = previous;
+            }
+        }
+        return counter;
+    }
+
+    public static void increment(String name)
+    {
+        counter(name).incrementAndGet();
+    }
+
+    public static void add(String name, long delta)
+    {
+        counter(name).addAndGet(delta);
+    }
+
+    public static void set(String name, long value)
+    {
+        counter(name).set(value);
+    }
+
+    /**
+     * Register (or replace) a gauge
+     */
+    public static void gauge(String name, Gauge gauge)
+    {
+        GAUGES.put(name, gauge);
+    }
+
+    /**
+     * Current value of a counter or gauge
+     * @return 0 if unknown
+     */
+    public static long get(String name)
+    {
+        Gauge gauge = GAUGES.get(name);
+        if (gauge != null)
+        {
+            return gauge.value();
+        }
+        AtomicLong counter = COUNTERS.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Remove the metrics starting with a prefix
+     */
+    public static void remove(String prefix)
+    {
+        Iterator<String> names = COUNTERS.keySet().iterator();
+        while (names.hasNext())
+        {
+            if (names.next().startsWith(prefix))
+            {
+                names.remove();
+            }
+        }
+        names = GAUGES.keySet().iterator();
+        while (names.hasNext())
+        {
+            if (names.next().startsWith(prefix))
+            {
+                names.remove();
+            }
+        }
+    }
+
+    /**
+     * All the current values, ordered by name
+     */
+    public static Map<String, Long> snapshot()
+    {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        Iterator<Map.Entry<String, AtomicLong>> counters = COUNTERS.entrySet().iterator();
+        while (counters.hasNext())
+        {
+            Map.Entry<String, AtomicLong> entry = counters.next();
+            values.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+        }
+        Iterator<Map.Entry<String, Gauge>> gauges = GAUGES.entrySet().iterator();
+        while (gauges.hasNext())
+        {
+            Map.Entry<String, Gauge> entry = gauges.next();
+            values.put(entry.getKey(), Long.valueOf(entry.getValue().value()));
+        }
+        return values;
+    }
+}
@@ -16,6 +16,8 @@
  */
 package com.jellylab.data;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.net.URLDecoder;
@@ -33,6 +35,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -49,16 +52,16 @@ public class DataMirror
     public static final String LAST_PKID = "lastID";
     public static final int TIPO_QUERY_INSERT = 1;
     public static final int TIPO_QUERY_UPDATE = 2;
-    private final String ENCODING = "ISO-8859-15";
+    static final String ENCODING = "ISO-8859-15";
     public static final String REQUEST_ERRORS_ONLOAD = "requestErrorsOnLoad";
     /**
      * force int value to zero
      */
-    private final int ZERO_VALUE = -3699639;
+    static final int ZERO_VALUE = -3699639;
     /**
      * force int value to null
      */
-    private final int NULL_VALUE = -3699633;
+    static final int NULL_VALUE = -3699633;
     /**
      * main DataStruct object
      */
@@ -92,6 +95,11 @@ public class DataMirror
         return mirror;
     }
 
+    /**
+     * Change the main DataStruct object.
+     * A DataMirror is not thread safe: share the structs, not the mirror (see on())
+     * @param dataStruct
+     */
     public void set(DataStruct dataStruct)
     {
         this.dataStruct = dataStruct;
@@ -109,7 +117,7 @@ public class DataMirror
      */
     public Map asMap()
     {
-        Field[] fields = dataStruct.getFields();
+        Field[] fields = StructMeta.of(dataStruct).fields();
 
         if (fields == null)
         {
@@ -188,7 +196,7 @@ public class DataMirror
     public DataMirror loadFromRequest(HttpServletRequest request, boolean urldecode)
     {
         Enumeration enume = request.getParameterNames();
-        Field[] dataFields = dataStruct.getFields();
+        Field[] dataFields = StructMeta.of(dataStruct).fields();
 
         int errMaxSize = 10;
         String[][] errori = new String[errMaxSize][2];
@@ -219,12 +227,13 @@ public class DataMirror
                         }
                         else if (type.equals(int.class))
                         {
-                            int intVal = new Integer(value).intValue();
+                            int intVal = markInt(dataStruct, idf, new Integer(value).intValue());
                             field.setInt(dataStruct, intVal);
                         }
                         else if (type.equals(double.class))
                         {
-                            double dblVal = gdv(value);
+                            // not parsable: 0, not set (as before)
+                            double dblVal = markDouble(dataStruct, idf, gdv(value));
                             field.setDouble(dataStruct, dblVal);
                         }
                     }
@@ -250,7 +259,8 @@ public class DataMirror
 
     public DataMirror loadFromResultSetRow(ResultSet rset)
     {
-        Field[] fields = dataStruct.getFields();
+        StructMeta meta = StructMeta.of(dataStruct);
+        Field[] fields = meta.fields();
 
         int fieldLen = fields.length;
         for (int idf = 0; idf < fieldLen; idf++)
@@ -265,7 +275,8 @@ public class DataMirror
                 try
                 {
                     String value = rset.getString(fieldName);
-                    value = nvl(value);
+                    markLoaded(dataStruct, idf, rset.wasNull());
+                    value = meta.intern(idf, nvl(value));
                     field.set(dataStruct, value);
                 }
                 catch (Exception exc)
@@ -278,6 +289,7 @@ public class DataMirror
                 try
                 {
                     int value = rset.getInt(fieldName);
+                    markLoaded(dataStruct, idf, rset.wasNull());
                     field.setInt(dataStruct, value);
                 }
                 catch (Exception exc)
@@ -290,6 +302,7 @@ public class DataMirror
                 try
                 {
                     double value = rset.getDouble(fieldName);
+                    markLoaded(dataStruct, idf, rset.wasNull());
                     field.setDouble(dataStruct, value);
                 }
                 catch (Exception exc)
@@ -302,10 +315,77 @@ public class DataMirror
         return this;
     }
 
+    /**
+     * Flag a loaded int: the sentinels become a real zero or NULL,
+     * other values follow the value rules
+     * @return value to store in the field
+     */
+    static int markInt(DataStruct struct, int idf, int intVal)
+    {
+        if (intVal == NULL_VALUE)
+        {
+            struct.markNull(idf);
+            return 0;
+        }
+        if (intVal == ZERO_VALUE)
+        {
+            struct.markSet(idf);
+            return 0;
+        }
+        struct.loadedValue(idf);
+        return intVal;
+    }
+
+    /**
+     * Flag a loaded double: the sentinels become a real zero or NULL,
+     * other values follow the value rules
+     * @return value to store in the field
+     */
+    static double markDouble(DataStruct struct, int idf, double dblVal)
+    {
+        if (dblVal == NULL_VALUE)
+        {
+            struct.markNull(idf);
+            return 0;
+        }
+        if (dblVal == ZERO_VALUE)
+        {
+            struct.markSet(idf);
+            return 0;
+        }
+        struct.loadedValue(idf);
+        return dblVal;
+    }
+
+    /**
+     * Flag a field read from a ResultSet: NULL columns are recorded (not as constraints)
+     */
+    static void markLoaded(DataStruct struct, int idf, boolean wasNull)
+    {
+        if (wasNull)
+        {
+            struct.loadedNull(idf);
+        }
+        else
+        {
+            struct.loadedValue(idf);
+        }
+    }
+
+    /**
+     * Read-only cursor on a ResultSet, reusing the main DataStruct for every row
+     * @param rset
+     * @return new cursor
+     */
+    public DataCursor cursor(ResultSet rset)
+    {
+        return new DataCursor(dataStruct, rset);
+    }
+
     public List<DataStruct> loadFromRequests(HttpServletRequest request)
     {
         Enumeration enume = request.getParameterNames();
-        Field[] dataFields = dataStruct.getFields();
+        Field[] dataFields = StructMeta.of(dataStruct).fields();
         final char fieldSep = '_';
 
         Map loadStructs = new HashMap();
@@ -351,12 +431,13 @@ public class DataMirror
                         }
                         else if (type.equals(int.class))
                         {
-                            int intVal = new Integer(value).intValue();
+                            int intVal = markInt(struct, idf, new Integer(value).intValue());
                             field.setInt(struct, intVal);
                         }
                         else if (type.equals(double.class))
                         {
-                            double dblVal = gdv(value);
+                            // not parsable: 0, not set (as before)
+                            double dblVal = markDouble(struct, idf, gdv(value));
                             field.setDouble(struct, dblVal);
                         }
                     }
@@ -371,95 +452,93 @@ public class DataMirror
         return new ArrayList(loadStructs.values());
     }
 
-    public String whereClause()
+    /**
+     * Load the "field_N" parameters of the request body (as loadFromRequests()),
+     * streaming request.getInputStream() instead of the container parameter map.
+     * JSON bodies (array of objects) are supported too.
+     * Do not call getParameter() on the same request before.
+     * @param request
+     * @return loaded structs
+     * @throws IOException
+     */
+    public List<DataStruct> loadFromRequestBody(HttpServletRequest request) throws IOException
     {
-        Field[] fields = dataStruct.getFields();
-
-        if (fields == null)
-        {
-            return "";
-        }
+        return new RequestBinder(dataStruct).bind(request);
+    }
 
-        int fieldLen = fields.length;
+    public String whereClause()
+    {
+        StructMeta meta = StructMeta.of(dataStruct);
+        long[] set = meta.setBits(dataStruct);
 
         StringBuffer where = new StringBuffer(1000);
-        // loop sui campi della DataStruct
-        for (int idf = 0; idf < fieldLen; idf++)
+        // loop sui campi impostati della DataStruct
+        for (int idf = StructMeta.nextSet(set, 0); idf >= 0; idf = StructMeta.nextSet(set, idf + 1))
         {
-            Field field = fields[idf];
-            field.setAccessible(true);
-            String name = field.getName();
-            Class type = field.getType();
-
-            StringBuffer whereField = new StringBuffer(50);
-            if (type.equals(String.class))
+            if (meta.getType(idf) == StructMeta.TYPE_OTHER)
             {
-                Object value = null;
-                try
-                {
-                    value = field.get(dataStruct);
-                }
-                catch (Exception exc)
-                {
-                    continue;
-                }
-                if (value == null)
-                {
-                    continue;
-                }
-                String strVal = value.toString();
-                if (!strVal.equals(""))
-                {
-                    whereField.append(name.toUpperCase());
-                    whereField.append(" = ?");
-                }
-            }
-            else if (type.equals(int.class))
-            {
-                int intVal = 0;
-                try
-                {
-                    intVal = field.getInt(dataStruct);
-                }
-                catch (Exception exc)
-                {
-                    continue;
-                }
-                if (intVal != 0 || intVal == ZERO_VALUE || intVal == NULL_VALUE)
-                {
-                    whereField.append(name.toUpperCase());
-                    whereField.append(" = ?");
-                }
+                continue;
             }
-            else if (type.equals(double.class))
+            if (where.length() > 0)
             {
-                double dblVal = 0;
-                try
-                {
-                    dblVal = field.getDouble(dataStruct);
-                }
-                catch (Exception exc)
-                {
-                    continue;
-                }
-                if (dblVal != 0 || dblVal == ZERO_VALUE || dblVal == NULL_VALUE)
-                {
-                    whereField.append(name.toUpperCase());
-                    whereField.append(" = ?");
-                }
+                where.append(" AND ");
             }
+            where.append(meta.getColumn(idf));
+            where.append(" = ?");
+        }
 
-            if (whereField.length() > 0)
+        return where.toString();
+    }
+
+    /**
+     * Number of parameters of whereClause() (and prepare())
+     */
+    public int parameterCount()
+    {
+        return StructMeta.count(StructMeta.of(dataStruct).setBits(dataStruct));
+    }
+
+    /**
+     * Shape of the generated SQL: set and NULL fields. Structs with the same shape
+     * have the same whereClause() and prepare() parameters
+     * @return shape key
+     */
+    public String shape()
+    {
+        StructMeta meta = StructMeta.of(dataStruct);
+        long[] nulls = new long[meta.words()];
+        long[] set = meta.bits(dataStruct, nulls);
+
+        StringBuffer shape = new StringBuffer(set.length * 34);
+        for (int word = 0; word < set.length; word++)
+        {
+            shape.append(Long.toHexString(set[word])).append(':');
+            shape.append(Long.toHexString(nulls[word] & set[word])).append(';');
+        }
+        return shape.toString();
+    }
+
+    /**
+     * Group structs by shape(), e.g. for one batch (PreparedStatement) per group
+     * @param structs
+     * @return key = shape, value = structs in the original order
+     */
+    public static Map<String, List<DataStruct>> groupByShape(List<? extends DataStruct> structs)
+    {
+        Map<String, List<DataStruct>> groups = new LinkedHashMap<String, List<DataStruct>>();
+        for (int pos = 0; pos < structs.size(); pos++)
+        {
+            DataStruct struct = structs.get(pos);
+            String shape = DataMirror.on(struct).shape();
+            List<DataStruct> group = groups.get(shape);
+            if (group == null)
             {
-                if (where.length() > 0)
-                {
-                    where.append(" AND ");
-                }
-                where.append(whereField);
+                group = new ArrayList<DataStruct>();
+                groups.put(shape, group);
             }
+            group.add(struct);
         }
-
-        return where.toString();
+        return groups;
     }
 
     public PreparedStatement prepare(PreparedStatement prstm) throws SQLException
@@ -469,113 +548,76 @@ public class DataMirror
 
     public PreparedStatement prepare(PreparedStatement prstm, boolean escludiPKID) throws SQLException
     {
-        Field[] fields = dataStruct.getFields();
+        bind(prstm, 1, escludiPKID);
+        return prstm;
+    }
 
-        int fieldLen = fields.length;
-        int pos = 1;
-        for (int idf = 0; idf < fieldLen; idf++)
-        {
-            Field field = fields[idf];
-            field.setAccessible(true);
+    /**
+     * Set the statement parameters, as prepare(), starting from a given position
+     * @param prstm
+     * @param pos first parameter position
+     * @param escludiPKID
+     * @return next free parameter position
+     * @throws SQLException
+     */
+    public int bind(PreparedStatement prstm, int pos, boolean escludiPKID) throws SQLException
+    {
+        StructMeta meta = StructMeta.of(dataStruct);
+        long[] nulls = new long[meta.words()];
+        long[] set = meta.bits(dataStruct, nulls);
 
+        for (int idf = StructMeta.nextSet(set, 0); idf >= 0; idf = StructMeta.nextSet(set, idf + 1))
+        {
             if (escludiPKID)
             {
-                String name = field.getName();
-
                 // FIXME special case:
-                if (name.toUpperCase().indexOf("PKID") > 0)
+                if (meta.getColumn(idf).indexOf("PKID") > 0)
                 {
                     continue;
                 }
             }
 
-            Class type = field.getType();
+            int type = meta.getType(idf);
 
-            if (type.equals(String.class))
+            if (type == StructMeta.TYPE_STRING)
             {
-                Object value = null;
-                try
-                {
-                    value = field.get(dataStruct);
-                }
-                catch (Exception exc)
+                String strVal = meta.getString(dataStruct, idf);
+                if (strVal == null || StructMeta.isSet(nulls, idf))
                 {
+                    prstm.setNull(pos++, java.sql.Types.VARCHAR);
                     continue;
                 }
-                if (value == null)
+                // FIXME special case
+                if (strVal.length() == 10 && strVal.indexOf('/') == 2 && strVal.lastIndexOf('/') == 5)
                 {
-                    continue;
-                }
-                String strVal = value.toString();
-                if (!strVal.equals(""))
-                {
-                    // FIXME special case
-                    if (strVal.length() == 10 && strVal.indexOf('/') == 2 && strVal.lastIndexOf('/') == 5)
-                    {
-                        strVal = dtIT2DB(strVal);
-                    }
-                    prstm.setString(pos++, strVal);
+                    strVal = dtIT2DB(strVal);
                 }
+                prstm.setString(pos++, strVal);
             }
-            else if (type.equals(int.class))
+            else if (type == StructMeta.TYPE_INT)
             {
-                int intVal = 0;
-                try
-                {
-                    intVal = field.getInt(dataStruct);
-                }
-                catch (Exception exc)
+                if (StructMeta.isSet(nulls, idf))
                 {
+                    prstm.setNull(pos++, java.sql.Types.INTEGER);
                     continue;
                 }
-                if (intVal != 0)
-                {
-                    if (intVal == ZERO_VALUE)
-                    {
-                        intVal = 0;
-                        prstm.setInt(pos++, intVal);
-                    }
-                    else if (intVal == NULL_VALUE)
-                    {
-                        prstm.setNull(pos++, java.sql.Types.INTEGER);
-                    }
-                    else
-                    {
-                        prstm.setInt(pos++, intVal);
-                    }
-                }
+                int intVal = meta.getInt(dataStruct, idf);
+                // structs without flags still use the sentinel
+                prstm.setInt(pos++, intVal == ZERO_VALUE ? 0 : intVal);
             }
-            else if (type.equals(double.class))
+            else if (type == StructMeta.TYPE_DOUBLE)
             {
-                double dblVal = 0;
-                try
-                {
-                    dblVal = field.getDouble(dataStruct);
-                }
-                catch (Exception exc)
+                if (StructMeta.isSet(nulls, idf))
                 {
+                    prstm.setNull(pos++, java.sql.Types.DOUBLE);
                     continue;
                 }
-                if (dblVal != 0)
-                {
-                    if (dblVal == ZERO_VALUE)
-                    {
-                        dblVal = 0;
-                        prstm.setDouble(pos++, dblVal);
-                    }
-                    else if (dblVal == NULL_VALUE)
-                    {
-                        prstm.setNull(pos++, java.sql.Types.DOUBLE);
-                    }
-                    else
-                    {
-                        prstm.setDouble(pos++, dblVal);
-                    }
-                }
+                double dblVal = meta.getDouble(dataStruct, idf);
+                prstm.setDouble(pos++, dblVal == ZERO_VALUE ? 0 : dblVal);
             }
         }
 
-        return prstm;
+        return pos;
     }
 
     public String asQueryString()
@@ -585,36 +627,31 @@ public class DataMirror
 
     public String asQueryString(boolean urlencode)
     {
-        Field[] fields = dataStruct.getFields();
-
-        if (fields == null)
-        {
-            return "";
-        }
-
-        int fieldLen = fields.length;
+        StructMeta meta = StructMeta.of(dataStruct);
+        long[] nulls = new long[meta.words()];
+        long[] set = meta.bits(dataStruct, nulls);
 
-        String qstring = "";
+        StringBuffer qstring = new StringBuffer(200);
 
-        for (int idf = 0; idf < fieldLen; idf++)
+        for (int idf = StructMeta.nextSet(set, 0); idf >= 0; idf = StructMeta.nextSet(set, idf + 1))
         {
-            Field field = fields[idf];
-            field.setAccessible(true);
-            String name = field.getName();
-            Class type = field.getType();
+            String name = meta.getName(idf);
+            int type = meta.getType(idf);
 
-            // se di tipo stringa
-            if (type.equals(String.class))
+            if (StructMeta.isSet(nulls, idf))
             {
-                String strVal = null;
-                try
+                // NULL travels as sentinel, loadFromRequest() flags it back
+                if (type == StructMeta.TYPE_INT || type == StructMeta.TYPE_DOUBLE)
                 {
-                    strVal = (String) field.get(dataStruct);
-                }
-                catch (Exception exc)
-                {
-                    continue;
+                    qstring.append('&').append(name).append('=').append(NULL_VALUE);
                 }
+                continue;
+            }
+
+            // se di tipo stringa
+            if (type == StructMeta.TYPE_STRING)
+            {
+                String strVal = meta.getString(dataStruct, idf);
                 if (strVal != null && !strVal.equals(""))
                 {
                     if (urlencode)
@@ -629,49 +666,35 @@ public class DataMirror
                             strVal = "*** Encoding error *** " + unencexc.getMessage();
                         }
                     }
-                    qstring += "&" + name + "=" + strVal;
+                    qstring.append('&').append(name).append('=').append(strVal);
                 }
             }
-            else if (type.equals(int.class))
+            else if (type == StructMeta.TYPE_INT)
             {
-                int intVal = 0;
-                try
-                {
-                    intVal = field.getInt(dataStruct);
-                }
-                catch (Exception exc)
-                {
-                    continue;
-                }
-                if (intVal != 0)
-                {
-                    qstring += "&" + name + "=" + intVal;
-                }
+                // a set zero travels as sentinel too, loadFromRequest() flags it back
+                int intVal = meta.getInt(dataStruct, idf);
+                qstring.append('&').append(name).append('=').append(intVal == 0 ? ZERO_VALUE : intVal);
             }
-            else if (type.equals(double.class))
+            else if (type == StructMeta.TYPE_DOUBLE)
             {
-                double dblVal = 0;
-                try
+                double dblVal = meta.getDouble(dataStruct, idf);
+                if (dblVal == 0 || dblVal == ZERO_VALUE)
                 {
-                    dblVal = field.getDouble(dataStruct);
-                }
-                catch (Exception exc)
-                {
-                    continue;
+                    qstring.append('&').append(name).append('=').append(ZERO_VALUE);
                 }
-                if (dblVal != 0)
+                else
                 {
-                    qstring += "&" + name + "=" + dblVal;
+                    qstring.append('&').append(name).append('=').append(dblVal);
                 }
             }
         }
 
-        return qstring;
+        return qstring.toString();
     }
 
     public String asJSON()
     {
-        Field[] fields = dataStruct.getFields();
+        Field[] fields = StructMeta.of(dataStruct).fields();
 
         if (fields == null)
         {
@@ -714,6 +737,16 @@ public class DataMirror
             {
                 strVal = "" + value;
             }
+            else if (value instanceof List)
+            {
+                // children (see DataGraph): nested array
+                json += "\"" + name + "\":" + asJSONArray((List) value);
+                if (idf < fieldLen - 1)
+                {
+                    json += ", ";
+                }
+                continue;
+            }
 
             json += "\"" + name + "\":\"" + strVal + "\"";
 
@@ -728,12 +761,51 @@ public class DataMirror
         return json;
     }
 
+    /**
+     * JSON array of a list: DataStruct elements as objects, others as strings
+     */
+    private String asJSONArray(List list)
+    {
+        StringBuffer json = new StringBuffer(list.size() * 100 + 2);
+        json.append('[');
+        for (int idx = 0; idx < list.size(); idx++)
+        {
+            Object item = list.get(idx);
+            if (idx > 0)
+            {
+                json.append(", ");
+            }
+            if (item instanceof DataStruct)
+            {
+                json.append(DataMirror.on((DataStruct) item).asJSON());
+            }
+            else
+            {
+                json.append('"').append(item == null ? "" : escape(item.toString())).append('"');
+            }
+        }
+        json.append(']');
+        return json.toString();
+    }
+
+    /**
+     * Write the DataStruct as UTF-8 JSON (same layout of asJSON(), minimal escaping)
+     * @param out
+     * @throws IOException
+     */
+    public void writeJSON(OutputStream out) throws IOException
+    {
+        JsonEncoder encoder = new JsonEncoder(out);
+        encoder.writeStruct(dataStruct);
+        encoder.flush();
+    }
+
     /**
      * Remove null string
      * @param str String to check
      * @return "" if string is null (or "null"), otherwise parameter string
      */
-    private String nvl(String str)
+    static String nvl(String str)
     {
         if (isNullOrEmpty(str))
         {
@@ -747,7 +819,7 @@ public class DataMirror
      * @param str String to parse
      * @return double from string, if parsable, else 0
      */
-    private double gdv(String str)
+    static double gdv(String str)
     {
         double value = 0;
         boolean found = false;
@@ -783,7 +855,7 @@ public class DataMirror
         return value;
     }
 
-    private boolean isNullOrEmpty(String parameter)
+    static boolean isNullOrEmpty(String parameter)
     {
         if (parameter == null
                 || parameter.trim().equals("")
@@ -804,59 +876,38 @@ public class DataMirror
         {
             return "";
         }
-        String ret = "";
-        int sz;
-        sz = str.length();
+        int sz = str.length();
+        StringBuffer ret = new StringBuffer(sz + 16);
         for (int i = 0; i < sz; i++)
         {
             char ch = str.charAt(i);
 
             // handle unicode
-            if (ch > 0xfff)
-            {
-                ret += "\\u" + hex(ch);
-            }
-            else if (ch > 0xff)
-            {
-                ret += "\\u0" + hex(ch);
-            }
-            else if (ch > 0x7f)
+            if (ch > 0x7f)
             {
-                ret += "\\u00" + hex(ch);
+                appendUnicode(ret, ch);
             }
             else if (ch < 32)
             {
                 switch (ch)
                 {
                     case '\b':
-                        ret += '\\';
-                        ret += 'b';
+                        ret.append('\\').append('b');
                         break;
                     case '\n':
-                        ret += '\\';
-                        ret += 'n';
+                        ret.append('\\').append('n');
                         break;
                     case '\t':
-                        ret += '\\';
-                        ret += 't';
+                        ret.append('\\').append('t');
                         break;
                     case '\f':
-                        ret += '\\';
-                        ret += 'f';
+                        ret.append('\\').append('f');
                         break;
                     case '\r':
-                        ret += '\\';
-                        ret += 'r';
+                        ret.append('\\').append('r');
                         break;
                     default:
-                        if (ch > 0xf)
-                        {
-                            ret += "\\u00" + hex(ch);
-                        }
-                        else
-                        {
-                            ret += "\\u000" + hex(ch);
-                        }
+                        appendUnicode(ret, ch);
                         break;
                 }
             }
@@ -865,44 +916,42 @@ public class DataMirror
                 switch (ch)
                 {
                     case '\'':
-                        ret += '\\';
-                        ret += '\'';
-                        break;
                     case '"':
-                        ret += '\\';
-                        ret += '"';
-                        break;
                     case '\\':
-                        ret += '\\';
-                        ret += '\\';
-                        break;
                     case '/':
-                        ret += '\\';
-                        ret += '/';
+                        ret.append('\\').append(ch);
                         break;
                     default:
-                        ret += ch;
+                        ret.append(ch);
                         break;
                 }
             }
 
         }
-        return ret;
+        return ret.toString();
     }
 
-    private String hex(char ch)
+    /**
+     * Append \\uXXXX (upper case hex) without allocations
+     */
+    private static void appendUnicode(StringBuffer ret, char ch)
     {
-        return Integer.toHexString(ch).toUpperCase();
+        final String HEX = "0123456789ABCDEF";
+        ret.append('\\').append('u');
+        ret.append(HEX.charAt((ch >> 12) & 0xf));
+        ret.append(HEX.charAt((ch >> 8) & 0xf));
+        ret.append(HEX.charAt((ch >> 4) & 0xf));
+        ret.append(HEX.charAt(ch & 0xf));
     }
 
-    private String dtIT2DB(String dateIT)
+    static String dtIT2DB(String dateIT)
     {
         Date data = dtIT2Date(dateIT);
 
         return date2DBdt(data);
     }
 
-    private Date dtIT2Date(String sdate)
+    private static Date dtIT2Date(String sdate)
     {
         final String FORMATO_IT = "dd/MM/yyyy";
         SimpleDateFormat sdfmt = new SimpleDateFormat(FORMATO_IT);
@@ -921,7 +970,7 @@ public class DataMirror
         return data;
     }
 
-    private String date2DBdt(Date date)
+    private static String date2DBdt(Date date)
     {
         if (date == null)
         {
@@ -943,21 +992,27 @@ public class DataMirror
     public static class DataStruct
     {
 
-        private transient Field[] fields = this.getClass().getFields();
-        private transient String name = this.getClass().getName();
         private int orderBy = -1;
+        /**
+         * fields explicitly set (by position in getFields()), also when zero or empty; null if none
+         */
+        private transient long[] presence = null;
+        /**
+         * fields whose value is SQL NULL
+         */
+        private transient long[] nulls = null;
 
         /**
-         * All fields, ordered by name
+         * All fields, ordered by name (copy of the class metadata, see StructMeta)
          */
         public Field[] getFields()
         {
-            Arrays.sort(fields, new FieldComparator());
-            return fields;
+            return StructMeta.of(getClass()).getFields();
         }
 
         public String getSingleName()
         {
+            String name = getClass().getName();
             return name.substring(name.indexOf("$") + 1);
         }
 
@@ -971,6 +1026,147 @@ public class DataMirror
             this.orderBy = orderBy;
         }
 
+        /**
+         * Flag a field as set even when its value is zero or empty (a real zero in
+         * whereClause() and prepare()). Fields with a non-empty / non-zero value are
+         * always set, flagged or not: the flags only add to the value rules
+         * @param idf field position in getFields()
+         */
+        public void markSet(int idf)
+        {
+            ensurePresence();
+            presence[idf >>> 6] |= 1L << idf;
+            nulls[idf >>> 6] &= ~(1L << idf);
+        }
+
+        public void markSet(String fieldName)
+        {
+            markSet(fieldIndex(fieldName));
+        }
+
+        /**
+         * Flag a field as set to NULL (bound with setNull() while its value stays zero or empty)
+         * @param idf field position in getFields()
+         */
+        public void markNull(int idf)
+        {
+            ensurePresence();
+            presence[idf >>> 6] |= 1L << idf;
+            nulls[idf >>> 6] |= 1L << idf;
+        }
+
+        public void markNull(String fieldName)
+        {
+            markNull(fieldIndex(fieldName));
+        }
+
+        /**
+         * Remove the flags of a field
+         */
+        public void unmark(int idf)
+        {
+            if (presence != null)
+            {
+                presence[idf >>> 6] &= ~(1L << idf);
+                nulls[idf >>> 6] &= ~(1L << idf);
+            }
+        }
+
+        /**
+         * Field flagged as set (see markSet())
+         */
+        public boolean isSet(int idf)
+        {
+            return presence != null && (presence[idf >>> 6] & (1L << idf)) != 0;
+        }
+
+        /**
+         * Field flagged as NULL (markNull(), or NULL column on load)
+         */
+        public boolean isNull(int idf)
+        {
+            return nulls != null && (nulls[idf >>> 6] & (1L << idf)) != 0;
+        }
+
+        /**
+         * Struct with flags
+         */
+        public boolean isTracked()
+        {
+            return presence != null;
+        }
+
+        /**
+         * Drop all the flags
+         */
+        public void clearPresence()
+        {
+            presence = null;
+            nulls = null;
+        }
+
+        /**
+         * No flags (reused structs, before each load)
+         */
+        void resetPresence()
+        {
+            if (presence != null)
+            {
+                Arrays.fill(presence, 0);
+                Arrays.fill(nulls, 0);
+            }
+        }
+
+        /**
+         * Field loaded with a value: previous flags dropped, the value rules decide
+         */
+        void loadedValue(int idf)
+        {
+            unmark(idf);
+        }
+
+        /**
+         * Field loaded from a NULL column: flagged NULL but not set,
+         * so it is not a constraint of whereClause()
+         */
+        void loadedNull(int idf)
+        {
+            ensurePresence();
+            presence[idf >>> 6] &= ~(1L << idf);
+            nulls[idf >>> 6] |= 1L << idf;
+        }
+
+        long[] presenceBits()
+        {
+            return presence;
+        }
+
+        long[] nullBits()
+        {
+            return nulls;
+        }
+
+        private void ensurePresence()
+        {
+            if (presence == null)
+            {
+                int words = (StructMeta.of(getClass()).size() + 63) >>> 6;
+                presence = new long[words];
+                nulls = new long[words];
+            }
+        }
+
+        private int fieldIndex(String fieldName)
+        {
+            StructMeta meta = StructMeta.of(getClass());
+            int idf = meta.indexOf(fieldName);
+            if (idf < 0 || meta.getType(idf) == StructMeta.TYPE_OTHER)
+            {
+                throw new IllegalArgumentException("Unknown field: " + fieldName);
+            }
+            return idf;
+        }
+
         public DataStruct newInstance()
         {
             try
@@ -989,26 +1185,26 @@ public class DataMirror
 
         public String toString()
         {
-            String strVal = "[" + getSingleName() + "]";
-            for (int idf = 0; idf < fields.length; idf++)
+            StructMeta meta = StructMeta.of(getClass());
+            StringBuffer strVal = new StringBuffer(100);
+            strVal.append('[').append(getSingleName()).append(']');
+            for (int idf = 0; idf < meta.size(); idf++)
             {
-                Field field = fields[idf];
-                field.setAccessible(true);
                 if (idf > 0)
                 {
-                    strVal += ", ";
+                    strVal.append(", ");
                 }
-                strVal += field.getName() + ":";
+                strVal.append(meta.getName(idf)).append(':');
                 try
                 {
-                    strVal += field.get(this);
+                    strVal.append(meta.get(this, idf));
                 }
                 catch (Exception exc)
                 {
-                    strVal += "{error}";
+                    strVal.append("{error}");
                 }
             }
-            return strVal;
+            return strVal.toString();
         }
     }
 
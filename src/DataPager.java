@@ -0,0 +1,398 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keyset pagination on a table: query by example (DataMirror.whereClause())
+ * plus a seek predicate on the sort keys, so every page costs as the first one.
+ * Sort keys are the explicit orderBy() fields, or the probe orderBy property
+ * (position in getFields()); the PKID field is appended to make the order unique.
+ * NULL sort values are not supported by the seek predicate: they are loaded as "" or 0
+ * and compared as such, so rows with NULL keys can be skipped or repeated.
+ */
+public class DataPager
+{
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    private final Connection conn;
+    private final String table;
+    private final DataStruct probe;
+    private final StructMeta meta;
+    /**
+     * sort key field positions
+     */
+    private int[] keys;
+    private boolean descending = false;
+    private boolean rowValues = true;
+    private String limitClause = null;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    /**
+     * key values of the last row read, null before the first page
+     */
+    private Object[] lastKey = null;
+    private boolean finished = false;
+
+    /**
+     * Constructor
+     *
+     * @param conn
+     * @param table table (or view) name
+     * @param probe DataStruct for the query by example, and model of the page rows
+     */
+    public DataPager(Connection conn, String table, DataStruct probe)
+    {
+        this.conn = conn;
+        this.table = table;
+        this.probe = probe;
+        this.meta = StructMeta.of(probe);
+    }
+
+    /**
+     * Explicit sort keys (instead of the probe orderBy)
+     * @param fields field names
+     */
+    public DataPager orderBy(String... fields)
+    {
+        int[] fieldKeys = new int[fields.length];
+        for (int idk = 0; idk < fields.length; idk++)
+        {
+            fieldKeys[idk] = meta.indexOf(fields[idk]);
+            if (fieldKeys[idk] < 0 || meta.getType(fieldKeys[idk]) == StructMeta.TYPE_OTHER)
+            {
+                throw new IllegalArgumentException("Unknown sort field: " + fields[idk]);
+            }
+        }
+        keys = uniqueKeys(fieldKeys);
+        return this;
+    }
+
+    public DataPager descending(boolean descending)
+    {
+        this.descending = descending;
+        return this;
+    }
+
+    public DataPager pageSize(int pageSize)
+    {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Use row value comparison "(K1, K2) > (?, ?)" (default), or the equivalent
+     * expanded form for databases without it
+     */
+    public DataPager rowValues(boolean rowValues)
+    {
+        this.rowValues = rowValues;
+        return this;
+    }
+
+    /**
+     * Limit clause appended to the query, with a single parameter for the page size,
+     * e.g. "LIMIT ?" or "FETCH FIRST ? ROWS ONLY" (default: Statement.setMaxRows() only)
+     */
+    public DataPager limitClause(String limitClause)
+    {
+        this.limitClause = limitClause;
+        return this;
+    }
+
+    /**
+     * Restart after a given key (e.g. the last key of a page shown in a previous request).
+     * The key has a value for each sort key, then the PKID value (appended unless the
+     * PKID is already a sort key), as returned by getLastKey()
+     * @param key values of the sort keys and the PKID, null to restart from the first page
+     * @throws IllegalArgumentException wrong number of values
+     */
+    public DataPager seek(Object... key)
+    {
+        if (key != null)
+        {
+            if (keys == null)
+            {
+                keys = uniqueKeys(probeKeys());
+            }
+            if (key.length != keys.length)
+            {
+                throw new IllegalArgumentException("Seek key of " + key.length + " values, expected "
+                        + keys.length + " (sort keys and PKID)");
+            }
+        }
+        lastKey = key;
+        finished = false;
+        return this;
+    }
+
+    /**
+     * Key values of the last row read, to resume with seek()
+     */
+    public Object[] getLastKey()
+    {
+        return lastKey;
+    }
+
+    public boolean hasNextPage()
+    {
+        return !finished;
+    }
+
+    /**
+     * Read the next page
+     * @return page rows (new DataStruct instances), empty at the end
+     * @throws SQLException
+     */
+    public List<DataStruct> nextPage() throws SQLException
+    {
+        List<DataStruct> page = new ArrayList<DataStruct>(pageSize);
+        if (finished)
+        {
+            return page;
+        }
+        if (keys == null)
+        {
+            keys = uniqueKeys(probeKeys());
+        }
+
+        PreparedStatement prstm = conn.prepareStatement(buildQuery(lastKey != null));
+        ResultSet rset = null;
+        try
+        {
+            int pos = DataMirror.on(probe).bind(prstm, 1, false);
+            if (lastKey != null)
+            {
+                pos = bindSeek(prstm, pos);
+            }
+            if (limitClause != null)
+            {
+                prstm.setInt(pos++, pageSize);
+            }
+            prstm.setMaxRows(pageSize);
+            prstm.setFetchSize(pageSize);
+
+            rset = prstm.executeQuery();
+            while (rset.next())
+            {
+                DataStruct struct = meta.newInstance();
+                DataMirror.on(struct).loadFromResultSetRow(rset);
+                page.add(struct);
+            }
+        }
+        finally
+        {
+            if (rset != null)
+            {
+                rset.close();
+            }
+            prstm.close();
+        }
+
+        if (page.size() < pageSize)
+        {
+            finished = true;
+        }
+        if (!page.isEmpty())
+        {
+            DataStruct last = page.get(page.size() - 1);
+            lastKey = new Object[keys.length];
+            for (int idk = 0; idk < keys.length; idk++)
+            {
+                lastKey[idk] = meta.get(last, keys[idk]);
+            }
+        }
+
+        return page;
+    }
+
+    private int[] probeKeys()
+    {
+        int orderBy = probe.getOrderBy();
+        if (orderBy >= 0 && orderBy < meta.size() && meta.getType(orderBy) != StructMeta.TYPE_OTHER)
+        {
+            return new int[]
+            {
+                orderBy
+            };
+        }
+        return new int[0];
+    }
+
+    /**
+     * Append the PKID field, if present and not already a key
+     */
+    private int[] uniqueKeys(int[] fieldKeys)
+    {
+        int pkid = -1;
+        for (int idf = 0; idf < meta.size() && pkid < 0; idf++)
+        {
+            if (meta.getColumn(idf).indexOf("PKID") >= 0 && meta.getType(idf) != StructMeta.TYPE_OTHER)
+            {
+                pkid = idf;
+            }
+        }
+        for (int idk = 0; idk < fieldKeys.length; idk++)
+        {
+            if (fieldKeys[idk] == pkid)
+            {
+                pkid = -1;
+            }
+        }
+        if (pkid < 0)
+        {
+            if (fieldKeys.length == 0)
+            {
+                throw new IllegalStateException("No sort key for " + probe.getSingleName());
+            }
+            return fieldKeys;
+        }
+
+        int[] unique = new int[fieldKeys.length + 1];
+        System.arraycopy(fieldKeys, 0, unique, 0, fieldKeys.length);
+        unique[fieldKeys.length] = pkid;
+        return unique;
+    }
+
+    private String buildQuery(boolean seek)
+    {
+        StringBuffer sql = new StringBuffer(200);
+        sql.append("SELECT * FROM ").append(table);
+
+        String where = DataMirror.on(probe).whereClause();
+        if (where.length() > 0 || seek)
+        {
+            sql.append(" WHERE ");
+            sql.append(where);
+        }
+        if (seek)
+        {
+            if (where.length() > 0)
+            {
+                sql.append(" AND ");
+            }
+            sql.append(seekPredicate());
+        }
+
+        sql.append(" ORDER BY ");
+        for (int idk = 0; idk < keys.length; idk++)
+        {
+            if (idk > 0)
+            {
+                sql.append(", ");
+            }
+            sql.append(meta.getColumn(keys[idk]));
+            if (descending)
+            {
+                sql.append(" DESC");
+            }
+        }
+
+        if (limitClause != null)
+        {
+            sql.append(' ').append(limitClause);
+        }
+        return sql.toString();
+    }
+
+    private String seekPredicate()
+    {
+        String operator = descending ? " < " : " > ";
+        StringBuffer seek = new StringBuffer(100);
+        if (rowValues)
+        {
+            StringBuffer params = new StringBuffer(20);
+            seek.append('(');
+            for (int idk = 0; idk < keys.length; idk++)
+            {
+                if (idk > 0)
+                {
+                    seek.append(", ");
+                    params.append(", ");
+                }
+                seek.append(meta.getColumn(keys[idk]));
+                params.append('?');
+            }
+            seek.append(')').append(operator).append('(').append(params).append(')');
+        }
+        else
+        {
+            // (K1 > ?) OR (K1 = ? AND K2 > ?) ...
+            seek.append('(');
+            for (int idk = 0; idk < keys.length; idk++)
+            {
+                if (idk > 0)
+                {
+                    seek.append(" OR ");
+                }
+                seek.append('(');
+                for (int eq = 0; eq < idk; eq++)
+                {
+                    seek.append(meta.getColumn(keys[eq])).append(" = ? AND ");
+                }
+                seek.append(meta.getColumn(keys[idk])).append(operator).append("?)");
+            }
+            seek.append(')');
+        }
+        return seek.toString();
+    }
+
+    private int bindSeek(PreparedStatement prstm, int pos) throws SQLException
+    {
+        if (rowValues)
+        {
+            for (int idk = 0; idk < keys.length; idk++)
+            {
+                bindKey(prstm, pos++, idk);
+            }
+        }
+        else
+        {
+            for (int idk = 0; idk < keys.length; idk++)
+            {
+                for (int eq = 0; eq <= idk; eq++)
+                {
+                    bindKey(prstm, pos++, eq);
+                }
+            }
+        }
+        return pos;
+    }
+
+    private void bindKey(PreparedStatement prstm, int pos, int idk) throws SQLException
+    {
+        Object value = lastKey[idk];
+        switch (meta.getType(keys[idk]))
+        {
+            case StructMeta.TYPE_INT:
+                prstm.setInt(pos, ((Number) value).intValue());
+                break;
+            case StructMeta.TYPE_DOUBLE:
+                prstm.setDouble(pos, ((Number) value).doubleValue());
+                break;
+            default:
+                prstm.setString(pos, value == null ? "" : value.toString());
+                break;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+
+/**
+ * Reactive source of DataStruct over a query or a ResultSet (Flow.Publisher, single subscriber).
+ * Rows are read only as requested by the subscriber: the fetch size (see FetchTuner) never
+ * exceeds the outstanding demand nor maxFetchSize, and the ResultSet, statement and connection are closed
+ * on completion, error or cancel. Every row is a new struct.
+ * JDBC calls run on the executor, by default virtual threads where available
+ * (Java 21+), else a cached pool of daemon threads.
+ */
+public class DataPublisher implements Flow.Publisher<DataStruct>
+{
+
+    public static final int DEFAULT_MAX_FETCH_SIZE = 1000;
+    private static volatile Executor defaultExecutor = null;
+    private final DataStruct model;
+    private final DataSource dataSource;
+    private final String sql;
+    private final DataStruct probe;
+    private ResultSet rset;
+    private Connection conn;
+    private Executor executor = null;
+    private int maxFetchSize = DEFAULT_MAX_FETCH_SIZE;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    /**
+     * Publisher over an open ResultSet
+     *
+     * @param model struct class of the rows
+     * @param rset ResultSet to read (closed at the end)
+     * @param conn connection closed at the end (null if managed by the caller)
+     */
+    public DataPublisher(DataStruct model, ResultSet rset, Connection conn)
+    {
+        this.model = model;
+        this.rset = rset;
+        this.conn = conn;
+        this.dataSource = null;
+        this.sql = null;
+        this.probe = null;
+    }
+
+    /**
+     * Publisher over a query, executed on the first request
+     *
+     * @param model struct class of the rows
+     * @param dataSource
+     * @param sql query, with the parameters of probe
+     * @param probe struct bound to the query as DataMirror.prepare() (null if no parameters)
+     */
+    public DataPublisher(DataStruct model, DataSource dataSource, String sql, DataStruct probe)
+    {
+        this.model = model;
+        this.dataSource = dataSource;
+        this.sql = sql;
+        this.probe = probe;
+    }
+
+    /**
+     * Executor of the JDBC calls and of the subscriber signals
+     */
+    public DataPublisher executor(Executor executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Upper bound of the fetch size, whatever the demand
+     */
+    public DataPublisher maxFetchSize(int maxFetchSize)
+    {
+        this.maxFetchSize = Math.max(maxFetchSize, 1);
+        return this;
+    }
+
+    public void subscribe(Flow.Subscriber<? super DataStruct> subscriber)
+    {
+        if (subscriber == null)
+        {
+            throw new NullPointerException("subscriber");
+        }
+        if (!subscribed.compareAndSet(false, true))
+        {
+            subscriber.onSubscribe(new Flow.Subscription()
+            {
+                public void request(long n)
+                {
+                }
+
+                public void cancel()
+                {
+                }
+            });
+            subscriber.onError(new IllegalStateException("DataPublisher allows a single subscriber"));
+            return;
+        }
+        RowSubscription subscription = new RowSubscription(subscriber, executor != null ? executor : defaultExecutor());
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Virtual threads (Executors.newVirtualThreadPerTaskExecutor(), Java 21+),
+     * else a cached pool of daemon threads
+     */
+    private static Executor defaultExecutor()
+    {
+        Executor exec = defaultExecutor;
+        if (exec == null)
+        {
+            synchronized (DataPublisher.class)
+            {
+                exec = defaultExecutor;
+                if (exec == null)
+                {
+                    try
+                    {
+                        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                        exec = (ExecutorService) factory.invoke(null);
+                    }
+                    catch (Exception exc)
+                    {
+                        exec = Executors.newCachedThreadPool(new ThreadFactory()
+                        {
+                            private final AtomicInteger count = new AtomicInteger();
+
+                            public Thread newThread(Runnable runnable)
+                            {
+                                Thread thread = new Thread(runnable, "DataPublisher-" + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+                    }
+                    defaultExecutor = exec;
+                }
+            }
+        }
+        return exec;
+    }
+
+    /**
+     * Demand of the subscriber; rows are emitted by a single drain loop at a time
+     */
+    private class RowSubscription implements Flow.Subscription, Runnable
+    {
+
+        private final Flow.Subscriber<? super DataStruct> subscriber;
+        private final Executor exec;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile Throwable badRequest = null;
+        private boolean done = false;
+        private PreparedStatement prstm = null;
+        private DataCursor cursor = null;
+        private FetchTuner tuner = null;
+
+        RowSubscription(Flow.Subscriber<? super DataStruct> subscriber, Executor exec)
+        {
+            this.subscriber = subscriber;
+            this.exec = exec;
+        }
+
+        public void request(long n)
+        {
+            if (n <= 0)
+            {
+                badRequest = new IllegalArgumentException("request(" + n + "): demand must be positive");
+            }
+            else
+            {
+                long current;
+                long next;
+                do
+                {
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                }
+                while (!demand.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        public void cancel()
+        {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule()
+        {
+            if (wip.getAndIncrement() == 0)
+            {
+                try
+                {
+                    exec.execute(this);
+                }
+                catch (RuntimeException rejexc)
+                {
+                    cancelled = true;
+                    close();
+                    subscriber.onError(rejexc);
+                }
+            }
+        }
+
+        /**
+         * Drain loop
+         */
+        public void run()
+        {
+            int missed = 1;
+            do
+            {
+                if (done)
+                {
+                    return;
+                }
+                if (cancelled)
+                {
+                    finish(null, false);
+                    return;
+                }
+                if (badRequest != null)
+                {
+                    finish(badRequest, true);
+                    return;
+                }
+
+                long requested = demand.get();
+                long emitted = 0;
+                try
+                {
+                    while (emitted != requested && !cancelled)
+                    {
+                        if (cursor == null)
+                        {
+                            open();
+                        }
+                        adjustFetchSize(requested - emitted);
+                        DataStruct struct = cursor.read();
+                        if (struct == null)
+                        {
+                            finish(null, true);
+                            return;
+                        }
+                        subscriber.onNext(struct);
+                        emitted++;
+                    }
+                }
+                catch (Throwable exc)
+                {
+                    finish(exc, true);
+                    return;
+                }
+                if (emitted > 0 && requested != Long.MAX_VALUE)
+                {
+                    demand.addAndGet(-emitted);
+                }
+
+                missed = wip.addAndGet(-missed);
+            }
+            while (missed != 0);
+        }
+
+        private void open() throws SQLException
+        {
+            if (rset == null)
+            {
+                conn = dataSource.getConnection();
+                prstm = conn.prepareStatement(sql);
+                if (probe != null)
+                {
+                    DataMirror.on(probe).bind(prstm, 1, false);
+                }
+                tuner = FetchTuner.forQuery(model, sql);
+                tuner.limit((int) Math.min(demand.get(), maxFetchSize));
+                tuner.start(prstm);
+                rset = prstm.executeQuery();
+            }
+            else
+            {
+                tuner = FetchTuner.forColumns(model, rset.getMetaData());
+            }
+            cursor = new DataCursor(model, rset).fetchTuner(tuner);
+        }
+
+        /**
+         * Fetch size of the tuner, but no rows fetched beyond the outstanding demand
+         */
+        private void adjustFetchSize(long outstanding)
+        {
+            tuner.limit((int) Math.min(outstanding, maxFetchSize));
+        }
+
+        /**
+         * Close the resources and signal the end (completion if error is null)
+         */
+        private void finish(Throwable error, boolean signal)
+        {
+            done = true;
+            close();
+            if (!signal)
+            {
+                return;
+            }
+            if (error != null)
+            {
+                subscriber.onError(error);
+            }
+            else
+            {
+                subscriber.onComplete();
+            }
+        }
+
+        private void close()
+        {
+            if (tuner != null)
+            {
+                tuner.finish();
+            }
+            if (rset != null)
+            {
+                try
+                {
+                    rset.close();
+                }
+                catch (SQLException sqlexc)
+                {
+                    // ignore
+                }
+            }
+            if (prstm != null)
+            {
+                try
+                {
+                    prstm.close();
+                }
+                catch (SQLException sqlexc)
+                {
+                    // ignore
+                }
+            }
+            if (conn != null)
+            {
+                try
+                {
+                    conn.close();
+                }
+                catch (SQLException sqlexc)
+                {
+                    // ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sort of DataStruct lists by field values (stable).
+ * Sort keys are extracted once per row into primitive arrays (int, double as
+ * ordered long bits, String or collation key bytes), then an index array is sorted:
+ * radix sort for a single numeric key, else merge sort (parallel on large lists).
+ * The list is permuted once at the end.
+ * Strings compare by String.compareTo(), or by locale with collator(); null first.
+ */
+public class DataSorter
+{
+
+    /**
+     * rows of a merge sort task split in parallel
+     */
+    public static final int PARALLEL_THRESHOLD = 1 << 14;
+    private static final int INSERTION_THRESHOLD = 24;
+    private final StructMeta meta;
+    private final List<Integer> fields = new ArrayList<Integer>();
+    private final List<Boolean> descending = new ArrayList<Boolean>();
+    private Collator collator = null;
+    private boolean parallel = true;
+
+    /**
+     * Constructor
+     *
+     * @param model struct class of the lists
+     */
+    public DataSorter(DataStruct model)
+    {
+        this.meta = StructMeta.of(model);
+    }
+
+    /**
+     * Sorter on the orderBy property of the model (position in getFields(), ASC)
+     * @param model
+     * @return sorter without keys if orderBy is not set
+     */
+    public static DataSorter byOrderBy(DataStruct model)
+    {
+        DataSorter sorter = new DataSorter(model);
+        int orderBy = model.getOrderBy();
+        if (orderBy >= 0 && orderBy < sorter.meta.size())
+        {
+            sorter.addKey(orderBy, false);
+        }
+        return sorter;
+    }
+
+    /**
+     * Add ascending keys
+     * @param fieldNames
+     */
+    public DataSorter asc(String... fieldNames)
+    {
+        for (String fieldName : fieldNames)
+        {
+            addKey(indexOf(fieldName), false);
+        }
+        return this;
+    }
+
+    /**
+     * Add descending keys
+     * @param fieldNames
+     */
+    public DataSorter desc(String... fieldNames)
+    {
+        for (String fieldName : fieldNames)
+        {
+            addKey(indexOf(fieldName), true);
+        }
+        return this;
+    }
+
+    /**
+     * Compare Strings by locale (collation keys extracted once per row)
+     * @param collator e.g. Collator.getInstance(Locale.ITALIAN), null for String.compareTo()
+     */
+    public DataSorter collator(Collator collator)
+    {
+        this.collator = collator;
+        return this;
+    }
+
+    /**
+     * Merge sort in parallel (ForkJoinPool.commonPool()) on large lists, default true
+     */
+    public DataSorter parallel(boolean parallel)
+    {
+        this.parallel = parallel;
+        return this;
+    }
+
+    /**
+     * Sort a list in place
+     * @param list structs of the model class
+     */
+    public <T extends DataStruct> void sort(List<T> list)
+    {
+        int[] order = sortedIndex(list);
+        Object[] rows = list.toArray();
+        for (int pos = 0; pos < order.length; pos++)
+        {
+            list.set(pos, (T) rows[order[pos]]);
+        }
+    }
+
+    /**
+     * Sorted order of a list, without changing it
+     * @return positions in the list, in sorted order
+     */
+    public int[] sortedIndex(List<? extends DataStruct> list)
+    {
+        int size = list.size();
+        int[] order = new int[size];
+        for (int idx = 0; idx < size; idx++)
+        {
+            order[idx] = idx;
+        }
+        if (fields.isEmpty() || size < 2)
+        {
+            return order;
+        }
+
+        Keys keys = new Keys(list);
+        if (keys.count == 1 && keys.ints[0] != null)
+        {
+            return radixSort(order, keys.ints[0], keys.desc[0]);
+        }
+        if (keys.count == 1 && keys.longs[0] != null)
+        {
+            return radixSort(order, keys.longs[0], keys.desc[0]);
+        }
+
+        int[] work = new int[size];
+        if (parallel && size > PARALLEL_THRESHOLD)
+        {
+            ForkJoinPool.commonPool().invoke(new MergeTask(keys, order, work, 0, size));
+        }
+        else
+        {
+            mergeSort(keys, order, work, 0, size);
+        }
+        return order;
+    }
+
+    private int indexOf(String fieldName)
+    {
+        int idf = meta.indexOf(fieldName);
+        if (idf < 0)
+        {
+            throw new IllegalArgumentException("Field not found: " + fieldName);
+        }
+        return idf;
+    }
+
+    private void addKey(int idf, boolean desc)
+    {
+        if (meta.getType(idf) == StructMeta.TYPE_OTHER)
+        {
+            throw new IllegalArgumentException("Not a String, int or double field: " + meta.getName(idf));
+        }
+        fields.add(Integer.valueOf(idf));
+        descending.add(Boolean.valueOf(desc));
+    }
+
+    /**
+     * LSD radix sort (8 bits per pass) of int keys, stable
+     */
+    private static int[] radixSort(int[] order, int[] keys, boolean desc)
+    {
+        int size = order.length;
+        // unsigned order of the flipped keys = signed order of the keys
+        int flip = desc ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+        int[] sorted = new int[size];
+        int[] count = new int[257];
+        for (int shift = 0; shift < 32; shift += 8)
+        {
+            Arrays.fill(count, 0);
+            for (int idx = 0; idx < size; idx++)
+            {
+                count[(((keys[order[idx]] ^ flip) >>> shift) & 0xFF) + 1]++;
+            }
+            if (count[1 + (((keys[order[0]] ^ flip) >>> shift) & 0xFF)] == size)
+            {
+                // all in one bucket: pass not needed
+                continue;
+            }
+            for (int bucket = 0; bucket < 256; bucket++)
+            {
+                count[bucket + 1] += count[bucket];
+            }
+            for (int idx = 0; idx < size; idx++)
+            {
+                int row = order[idx];
+                sorted[count[((keys[row] ^ flip) >>> shift) & 0xFF]++] = row;
+            }
+            int[] swap = order;
+            order = sorted;
+            sorted = swap;
+        }
+        return order;
+    }
+
+    /**
+     * LSD radix sort (8 bits per pass) of long keys, stable
+     */
+    private static int[] radixSort(int[] order, long[] keys, boolean desc)
+    {
+        int size = order.length;
+        long flip = desc ? Long.MAX_VALUE : Long.MIN_VALUE;
+        int[] sorted = new int[size];
+        int[] count = new int[257];
+        for (int shift = 0; shift < 64; shift += 8)
+        {
+            Arrays.fill(count, 0);
+            for (int idx = 0; idx < size; idx++)
+            {
+                count[(int) (((keys[order[idx]] ^ flip) >>> shift) & 0xFF) + 1]++;
+            }
+            if (count[1 + (int) (((keys[order[0]] ^ flip) >>> shift) & 0xFF)] == size)
+            {
+                continue;
+            }
+            for (int bucket = 0; bucket < 256; bucket++)
+            {
+                count[bucket + 1] += count[bucket];
+            }
+            for (int idx = 0; idx < size; idx++)
+            {
+                int row = order[idx];
+                sorted[count[(int) (((keys[row] ^ flip) >>> shift) & 0xFF)]++] = row;
+            }
+            int[] swap = order;
+            order = sorted;
+            sorted = swap;
+        }
+        return order;
+    }
+
+    /**
+     * Top-down merge sort of order[from, to), stable
+     */
+    private static void mergeSort(Keys keys, int[] order, int[] work, int from, int to)
+    {
+        if (to - from <= INSERTION_THRESHOLD)
+        {
+            insertionSort(keys, order, from, to);
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(keys, order, work, from, mid);
+        mergeSort(keys, order, work, mid, to);
+        merge(keys, order, work, from, mid, to);
+    }
+
+    private static void insertionSort(Keys keys, int[] order, int from, int to)
+    {
+        for (int idx = from + 1; idx < to; idx++)
+        {
+            int row = order[idx];
+            int pos = idx - 1;
+            while (pos >= from && keys.compare(order[pos], row) > 0)
+            {
+                order[pos + 1] = order[pos];
+                pos--;
+            }
+            order[pos + 1] = row;
+        }
+    }
+
+    private static void merge(Keys keys, int[] order, int[] work, int from, int mid, int to)
+    {
+        if (keys.compare(order[mid - 1], order[mid]) <= 0)
+        {
+            // already in order
+            return;
+        }
+        System.arraycopy(order, from, work, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int idx = from; idx < to; idx++)
+        {
+            if (right >= to || (left < mid && keys.compare(work[left], work[right]) <= 0))
+            {
+                order[idx] = work[left++];
+            }
+            else
+            {
+                order[idx] = work[right++];
+            }
+        }
+    }
+
+    private static class MergeTask extends RecursiveAction
+    {
+
+        private final Keys keys;
+        private final int[] order;
+        private final int[] work;
+        private final int from;
+        private final int to;
+
+        MergeTask(Keys keys, int[] order, int[] work, int from, int to)
+        {
+            this.keys = keys;
+            this.order = order;
+            this.work = work;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= PARALLEL_THRESHOLD)
+            {
+                mergeSort(keys, order, work, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new MergeTask(keys, order, work, from, mid), new MergeTask(keys, order, work, mid, to));
+            merge(keys, order, work, from, mid, to);
+        }
+    }
+
+    /**
+     * Sort keys of the rows, extracted once: one array per key, by row position
+     */
+    private class Keys
+    {
+
+        final int count;
+        final boolean[] desc;
+        final int[][] ints;
+        final long[][] longs;
+        final String[][] strings;
+        final byte[][][] collated;
+
+        Keys(List<? extends DataStruct> list)
+        {
+            count = fields.size();
+            desc = new boolean[count];
+            ints = new int[count][];
+            longs = new long[count][];
+            strings = new String[count][];
+            collated = new byte[count][][];
+
+            int size = list.size();
+            Object[] rows = list.toArray();
+            for (int key = 0; key < count; key++)
+            {
+                int idf = fields.get(key).intValue();
+                desc[key] = descending.get(key).booleanValue();
+                switch (meta.getType(idf))
+                {
+                    case StructMeta.TYPE_INT:
+                        ints[key] = new int[size];
+                        for (int row = 0; row < size; row++)
+                        {
+                            ints[key][row] = meta.getInt((DataStruct) rows[row], idf);
+                        }
+                        break;
+                    case StructMeta.TYPE_DOUBLE:
+                        longs[key] = new long[size];
+                        for (int row = 0; row < size; row++)
+                        {
+                            longs[key][row] = sortableBits(meta.getDouble((DataStruct) rows[row], idf));
+                        }
+                        break;
+                    default:
+                        if (collator != null)
+                        {
+                            collated[key] = new byte[size][];
+                            for (int row = 0; row < size; row++)
+                            {
+                                String strVal = meta.getString((DataStruct) rows[row], idf);
+                                collated[key][row] = strVal == null ? null : collator.getCollationKey(strVal).toByteArray();
+                            }
+                        }
+                        else
+                        {
+                            strings[key] = new String[size];
+                            for (int row = 0; row < size; row++)
+                            {
+                                strings[key][row] = meta.getString((DataStruct) rows[row], idf);
+                            }
+                        }
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Double as long with the same order (negatives flipped, -0.0 before 0.0, NaN last)
+         */
+        private long sortableBits(double value)
+        {
+            long bits = Double.doubleToLongBits(value);
+            return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+        }
+
+        int compare(int row1, int row2)
+        {
+            for (int key = 0; key < count; key++)
+            {
+                int cmp;
+                if (ints[key] != null)
+                {
+                    cmp = Integer.compare(ints[key][row1], ints[key][row2]);
+                }
+                else if (longs[key] != null)
+                {
+                    cmp = Long.compare(longs[key][row1], longs[key][row2]);
+                }
+                else if (collated[key] != null)
+                {
+                    cmp = compareBytes(collated[key][row1], collated[key][row2]);
+                }
+                else
+                {
+                    cmp = compareStrings(strings[key][row1], strings[key][row2]);
+                }
+                if (cmp != 0)
+                {
+                    return desc[key] ? -cmp : cmp;
+                }
+            }
+            return 0;
+        }
+
+        private int compareStrings(String str1, String str2)
+        {
+            if (str1 == null || str2 == null)
+            {
+                return str1 == null ? (str2 == null ? 0 : -1) : 1;
+            }
+            return str1.compareTo(str2);
+        }
+
+        private int compareBytes(byte[] bytes1, byte[] bytes2)
+        {
+            if (bytes1 == null || bytes2 == null)
+            {
+                return bytes1 == null ? (bytes2 == null ? 0 : -1) : 1;
+            }
+            return Arrays.compareUnsigned(bytes1, bytes2);
+        }
+    }
+}
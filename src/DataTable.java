@@ -0,0 +1,417 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory collection of DataStruct (same class) with secondary indexes
+ * and query by example, with the same rules of DataMirror.whereClause():
+ * non-empty String and non-zero int/double fields of the probe are constrained, as the fields
+ * flagged with markSet() (a real zero); a field set to NULL matches nothing.
+ * Indexed fields must not be changed while the struct is in the table (remove, change, add).
+ * Not synchronized.
+ */
+public class DataTable
+{
+
+    private final StructMeta meta;
+    private final List<DataStruct> rows = new ArrayList<DataStruct>();
+    /**
+     * row position, for O(1) remove
+     */
+    private final Map<DataStruct, Integer> positions = new IdentityHashMap<DataStruct, Integer>();
+    /**
+     * indexes by field position
+     */
+    private final Index[] indexes;
+
+    /**
+     * Constructor
+     *
+     * @param dataStruct model of the table structs
+     */
+    public DataTable(DataStruct dataStruct)
+    {
+        this.meta = StructMeta.of(dataStruct);
+        this.indexes = new Index[meta.size()];
+    }
+
+    /**
+     * Declare a hash index (equality lookups)
+     * @param field field name
+     */
+    public DataTable hashIndex(String field)
+    {
+        return addIndex(field, new Index(new HashMap<Object, List<DataStruct>>()));
+    }
+
+    /**
+     * Declare a sorted index (equality and range lookups)
+     * @param field field name
+     */
+    public DataTable sortedIndex(String field)
+    {
+        return addIndex(field, new Index(new TreeMap<Object, List<DataStruct>>()));
+    }
+
+    private DataTable addIndex(String field, Index index)
+    {
+        int idf = fieldIndex(field);
+        indexes[idf] = index;
+        for (int pos = 0; pos < rows.size(); pos++)
+        {
+            DataStruct struct = rows.get(pos);
+            index.add(value(struct, idf), struct);
+        }
+        return this;
+    }
+
+    private int fieldIndex(String field)
+    {
+        int idf = meta.indexOf(field);
+        if (idf < 0 || meta.getType(idf) == StructMeta.TYPE_OTHER)
+        {
+            throw new IllegalArgumentException("Unknown field: " + field);
+        }
+        return idf;
+    }
+
+    /**
+     * Add a struct
+     * @return false if already in the table (same instance, not added again)
+     */
+    public boolean add(DataStruct struct)
+    {
+        if (positions.containsKey(struct))
+        {
+            return false;
+        }
+        positions.put(struct, Integer.valueOf(rows.size()));
+        rows.add(struct);
+        for (int idf = 0; idf < indexes.length; idf++)
+        {
+            if (indexes[idf] != null)
+            {
+                indexes[idf].add(value(struct, idf), struct);
+            }
+        }
+        return true;
+    }
+
+    public void addAll(Collection<? extends DataStruct> structs)
+    {
+        Iterator<? extends DataStruct> iter = structs.iterator();
+        while (iter.hasNext())
+        {
+            add(iter.next());
+        }
+    }
+
+    /**
+     * Remove a struct (same instance)
+     * @return false if not in the table
+     */
+    public boolean remove(DataStruct struct)
+    {
+        Integer pos = positions.remove(struct);
+        if (pos == null)
+        {
+            return false;
+        }
+
+        // move the last row in the hole
+        DataStruct last = rows.remove(rows.size() - 1);
+        if (last != struct)
+        {
+            rows.set(pos.intValue(), last);
+            positions.put(last, pos);
+        }
+
+        for (int idf = 0; idf < indexes.length; idf++)
+        {
+            if (indexes[idf] != null)
+            {
+                indexes[idf].remove(value(struct, idf), struct);
+            }
+        }
+        return true;
+    }
+
+    public int size()
+    {
+        return rows.size();
+    }
+
+    /**
+     * All the structs (read only, order not preserved after remove)
+     */
+    public List<DataStruct> getRows()
+    {
+        return Collections.unmodifiableList(rows);
+    }
+
+    /**
+     * Equality lookup on a field (indexed or not)
+     * @param field field name
+     * @param value String, Integer or Double
+     */
+    public List<DataStruct> get(String field, Object value)
+    {
+        int idf = fieldIndex(field);
+        if (indexes[idf] != null)
+        {
+            return new ArrayList<DataStruct>(indexes[idf].get(value));
+        }
+        List<DataStruct> found = new ArrayList<DataStruct>();
+        for (int pos = 0; pos < rows.size(); pos++)
+        {
+            DataStruct struct = rows.get(pos);
+            if (value(struct, idf).equals(value))
+            {
+                found.add(struct);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Range lookup on a sorted index
+     * @param field field name
+     * @param from lower bound (inclusive), null for none
+     * @param to upper bound (exclusive), null for none
+     */
+    public List<DataStruct> range(String field, Object from, Object to)
+    {
+        int idf = fieldIndex(field);
+        if (indexes[idf] == null || !(indexes[idf].map instanceof NavigableMap))
+        {
+            throw new IllegalStateException("No sorted index on " + field);
+        }
+
+        NavigableMap<Object, List<DataStruct>> sorted = (NavigableMap<Object, List<DataStruct>>) indexes[idf].map;
+        if (from != null && to != null)
+        {
+            sorted = sorted.subMap(from, true, to, false);
+        }
+        else if (from != null)
+        {
+            sorted = sorted.tailMap(from, true);
+        }
+        else if (to != null)
+        {
+            sorted = sorted.headMap(to, false);
+        }
+
+        List<DataStruct> found = new ArrayList<DataStruct>();
+        Iterator<List<DataStruct>> buckets = sorted.values().iterator();
+        while (buckets.hasNext())
+        {
+            found.addAll(buckets.next());
+        }
+        return found;
+    }
+
+    /**
+     * Query by example
+     * @param probe struct with the constrained fields set
+     * @return matching structs
+     */
+    public List<DataStruct> find(DataStruct probe)
+    {
+        return find(probe, Integer.MAX_VALUE);
+    }
+
+    /**
+     * First struct matching the probe
+     * @return null if not found
+     */
+    public DataStruct findFirst(DataStruct probe)
+    {
+        List<DataStruct> found = find(probe, 1);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    private List<DataStruct> find(DataStruct probe, int max)
+    {
+        List<DataStruct> found = new ArrayList<DataStruct>();
+
+        // constrained fields
+        long[] nulls = new long[meta.words()];
+        long[] set = meta.bits(probe, nulls);
+        for (int word = 0; word < set.length; word++)
+        {
+            if ((set[word] & nulls[word]) != 0)
+            {
+                // "= NULL" never matches
+                return found;
+            }
+        }
+        int fieldLen = meta.size();
+        int[] fields = new int[fieldLen];
+        Object[] values = new Object[fieldLen];
+        int count = 0;
+        for (int idf = StructMeta.nextSet(set, 0); idf >= 0; idf = StructMeta.nextSet(set, idf + 1))
+        {
+            Object value = null;
+            switch (meta.getType(idf))
+            {
+                case StructMeta.TYPE_STRING:
+                    value = DataMirror.nvl(meta.getString(probe, idf));
+                    break;
+                case StructMeta.TYPE_INT:
+                    int intVal = meta.getInt(probe, idf);
+                    value = Integer.valueOf(intVal == DataMirror.ZERO_VALUE ? 0 : intVal);
+                    break;
+                case StructMeta.TYPE_DOUBLE:
+                    double dblVal = meta.getDouble(probe, idf);
+                    value = Double.valueOf(dblVal == DataMirror.ZERO_VALUE ? 0 : dblVal);
+                    break;
+                default:
+                    break;
+            }
+            if (value != null)
+            {
+                fields[count] = idf;
+                values[count] = value;
+                count++;
+            }
+        }
+
+        // plan: smallest index bucket, else full scan
+        List<DataStruct> candidates = rows;
+        int planned = -1;
+        for (int idc = 0; idc < count; idc++)
+        {
+            Index index = indexes[fields[idc]];
+            if (index != null)
+            {
+                List<DataStruct> bucket = index.get(values[idc]);
+                if (planned < 0 || bucket.size() < candidates.size())
+                {
+                    candidates = bucket;
+                    planned = idc;
+                }
+                if (bucket.isEmpty())
+                {
+                    return found;
+                }
+            }
+        }
+
+        int candLen = candidates.size();
+        for (int pos = 0; pos < candLen && found.size() < max; pos++)
+        {
+            DataStruct struct = candidates.get(pos);
+            boolean match = true;
+            for (int idc = 0; idc < count && match; idc++)
+            {
+                if (idc != planned)
+                {
+                    match = value(struct, fields[idc]).equals(values[idc]);
+                }
+            }
+            if (match)
+            {
+                found.add(struct);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Index key of a field (null String as "")
+     */
+    private Object value(DataStruct struct, int idf)
+    {
+        Object value = meta.get(struct, idf);
+        return value == null ? "" : value;
+    }
+
+    /**
+     * Secondary index: key = field value, value = structs with that value
+     * (order not preserved after remove)
+     */
+    private static class Index
+    {
+
+        private final Map<Object, List<DataStruct>> map;
+        /**
+         * position in its bucket, for O(1) remove
+         */
+        private final Map<DataStruct, Integer> slots = new IdentityHashMap<DataStruct, Integer>();
+
+        Index(Map<Object, List<DataStruct>> map)
+        {
+            this.map = map;
+        }
+
+        void add(Object key, DataStruct struct)
+        {
+            List<DataStruct> bucket = map.get(key);
+            if (bucket == null)
+            {
+                bucket = new ArrayList<DataStruct>(2);
+                map.put(key, bucket);
+            }
+            slots.put(struct, Integer.valueOf(bucket.size()));
+            bucket.add(struct);
+        }
+
+        void remove(Object key, DataStruct struct)
+        {
+            Integer pos = slots.remove(struct);
+            List<DataStruct> bucket = map.get(key);
+            if (pos == null || bucket == null)
+            {
+                return;
+            }
+
+            // move the last struct of the bucket in the hole
+            DataStruct last = bucket.remove(bucket.size() - 1);
+            if (last != struct)
+            {
+                bucket.set(pos.intValue(), last);
+                slots.put(last, pos);
+            }
+            if (bucket.isEmpty())
+            {
+                map.remove(key);
+            }
+        }
+
+        List<DataStruct> get(Object key)
+        {
+            List<DataStruct> bucket = map.get(key);
+            if (bucket == null)
+            {
+                return Collections.emptyList();
+            }
+            return bucket;
+        }
+    }
+}
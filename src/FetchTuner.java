@@ -0,0 +1,435 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adaptive JDBC fetch size of one read (ResultSet).
+ * While reading it measures the average row size (sampled from the loaded structs)
+ * and the time of each fetch window (rset.next() calls of fetchSize rows):
+ * the fetch size doubles while the time per row improves, and never exceeds
+ * memoryBudget / row size. Statistics are kept by struct class and query shape
+ * (SQL with literals and IN lists normalized, or column labels), so the next read
+ * of the same query starts from the last decision; beyond MAX_SHAPES shapes the
+ * new ones are tuned without statistics and metrics.
+ * Metrics (DataMetrics): fetch.CLASS.SHAPE.{fetchSize,rowBytes,fetchMicros,adjustments},
+ * SHAPE being the hex hash of the shape. Not thread safe: one tuner per read.
+ * The fetch size of a ResultSet is changed only when a tuner is used on it.
+ */
+public final class FetchTuner
+{
+
+    public static final int DEFAULT_FETCH_SIZE = 100;
+    public static final int MIN_FETCH_SIZE = 10;
+    public static final int MAX_FETCH_SIZE = 10000;
+    public static final long DEFAULT_MEMORY_BUDGET = 4L * 1024 * 1024;
+    /**
+     * max query shapes with statistics (and metrics)
+     */
+    public static final int MAX_SHAPES = 1000;
+    /**
+     * one row sampled every SAMPLE_EVERY
+     */
+    private static final int SAMPLE_EVERY = 16;
+    /**
+     * estimated bytes of a value besides its content (driver buffers)
+     */
+    private static final int VALUE_OVERHEAD = 4;
+    /**
+     * statistics by class + shape
+     */
+    private static final ConcurrentHashMap<String, Stats> STATS = new ConcurrentHashMap<String, Stats>();
+    private final StructMeta meta;
+    private final Stats stats;
+    private final String metricPrefix;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private int limit = Integer.MAX_VALUE;
+    private int fetchSize;
+    private int applied = 0;
+    private ResultSet rset = null;
+    private long rows = 0;
+    private int windowRows = 0;
+    private long windowNanos = 0;
+    private boolean finished = false;
+
+    /**
+     * Statistics of a query shape, shared by its reads
+     */
+    private static class Stats
+    {
+
+        volatile int fetchSize = DEFAULT_FETCH_SIZE;
+        volatile double rowBytes = 0;
+        volatile double rowNanos = 0;
+        volatile long fetchNanos = 0;
+    }
+
+    private FetchTuner(StructMeta meta, String shape)
+    {
+        this.meta = meta;
+        String key = meta.getStructClass().getName() + "|" + shape;
+        Stats shapeStats = STATS.get(key);
+        boolean shared = shapeStats != null;
+        if (!shared)
+        {
+            shapeStats = new Stats();
+            // the bound may be exceeded by a few concurrent registrations
+            if (STATS.size() < MAX_SHAPES)
+            {
+                Stats previous = STATS.putIfAbsent(key, shapeStats);
+                if (previous != null)
+                {
+                    shapeStats = previous;
+                }
+                shared = true;
+            }
+        }
+        this.stats = shapeStats;
+        this.fetchSize = stats.fetchSize;
+        this.metricPrefix = shared
+                ? "fetch." + meta.getStructClass().getName() + "." + Integer.toHexString(shape.hashCode()) + "."
+                : null;
+    }
+
+    /**
+     * Tuner of a query
+     * @param model struct class of the rows
+     * @param sql query text (the shape, normalized)
+     */
+    public static FetchTuner forQuery(DataStruct model, String sql)
+    {
+        return new FetchTuner(StructMeta.of(model), normalize(sql));
+    }
+
+    /**
+     * Shape of a query: whitespace collapsed, upper case, string and number
+     * literals as ?, IN lists as (?)
+     */
+    static String normalize(String sql)
+    {
+        StringBuffer shape = new StringBuffer(sql.length());
+        int len = sql.length();
+        int pos = 0;
+        while (pos < len)
+        {
+            char ch = sql.charAt(pos);
+            if (ch == '\'')
+            {
+                // string literal ('' escaped quote)
+                pos++;
+                while (pos < len && (sql.charAt(pos) != '\'' || (pos + 1 < len && sql.charAt(pos + 1) == '\'')))
+                {
+                    pos += sql.charAt(pos) == '\'' ? 2 : 1;
+                }
+                pos++;
+                shape.append('?');
+            }
+            else if (Character.isDigit(ch) && !isWordEnd(shape))
+            {
+                while (pos < len && (Character.isDigit(sql.charAt(pos)) || sql.charAt(pos) == '.'))
+                {
+                    pos++;
+                }
+                shape.append('?');
+            }
+            else if (Character.isWhitespace(ch))
+            {
+                while (pos < len && Character.isWhitespace(sql.charAt(pos)))
+                {
+                    pos++;
+                }
+                if (shape.length() > 0 && pos < len)
+                {
+                    shape.append(' ');
+                }
+            }
+            else
+            {
+                shape.append(Character.toUpperCase(ch));
+                pos++;
+            }
+            collapseList(shape);
+        }
+        return shape.toString();
+    }
+
+    /**
+     * Last char part of a name (digits then belong to it)
+     */
+    private static boolean isWordEnd(StringBuffer shape)
+    {
+        if (shape.length() == 0)
+        {
+            return false;
+        }
+        char last = shape.charAt(shape.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_' || last == '$';
+    }
+
+    /**
+     * "?, ?" at the end of the shape becomes "?"
+     */
+    private static void collapseList(StringBuffer shape)
+    {
+        int end = shape.length();
+        if (end >= 3 && shape.charAt(end - 1) == '?')
+        {
+            int pos = end - 2;
+            if (shape.charAt(pos) == ' ')
+            {
+                pos--;
+            }
+            if (pos >= 1 && shape.charAt(pos) == ',')
+            {
+                pos--;
+                if (shape.charAt(pos) == ' ')
+                {
+                    pos--;
+                }
+                if (pos >= 0 && shape.charAt(pos) == '?')
+                {
+                    shape.setLength(pos + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tuner of a ResultSet without the query text: the shape is the column labels
+     * @param model struct class of the rows
+     * @param rsmd
+     * @throws SQLException
+     */
+    public static FetchTuner forColumns(DataStruct model, ResultSetMetaData rsmd) throws SQLException
+    {
+        return forColumns(StructMeta.of(model), rsmd);
+    }
+
+    static FetchTuner forColumns(StructMeta meta, ResultSetMetaData rsmd) throws SQLException
+    {
+        StringBuffer shape = new StringBuffer(200);
+        int colCount = rsmd.getColumnCount();
+        for (int col = 1; col <= colCount; col++)
+        {
+            shape.append(rsmd.getColumnLabel(col).toUpperCase()).append(',');
+        }
+        return new FetchTuner(meta, shape.toString());
+    }
+
+    /**
+     * Memory for the rows of a fetch (estimated)
+     * @param memoryBudget bytes
+     */
+    public FetchTuner memoryBudget(long memoryBudget)
+    {
+        this.memoryBudget = Math.max(memoryBudget, 1);
+        return this;
+    }
+
+    /**
+     * Rows wanted at most in the next fetch (e.g. the demand of a subscriber)
+     */
+    public FetchTuner limit(int limit)
+    {
+        this.limit = Math.max(limit, 1);
+        apply();
+        return this;
+    }
+
+    /**
+     * Current decision (before the limit)
+     */
+    public int getFetchSize()
+    {
+        return fetchSize;
+    }
+
+    /**
+     * Initial fetch size on the statement, before executeQuery()
+     */
+    public void start(Statement stm)
+    {
+        try
+        {
+            stm.setFetchSize(Math.min(fetchSize, limit));
+        }
+        catch (SQLException sqlexc)
+        {
+            // hint not supported by the driver
+        }
+    }
+
+    /**
+     * rset.next(), timed
+     * @return rset.next()
+     * @throws SQLException
+     */
+    public boolean next(ResultSet rset) throws SQLException
+    {
+        if (this.rset != rset)
+        {
+            this.rset = rset;
+            applied = 0;
+            apply();
+        }
+        long start = System.nanoTime();
+        boolean hasNext = rset.next();
+        windowNanos += System.nanoTime() - start;
+        if (!hasNext)
+        {
+            finish();
+            return false;
+        }
+        rows++;
+        if (++windowRows >= Math.min(fetchSize, limit))
+        {
+            endWindow();
+        }
+        return true;
+    }
+
+    /**
+     * Row loaded (the row size is sampled)
+     */
+    public void loaded(DataStruct struct)
+    {
+        if (rows % SAMPLE_EVERY != 1)
+        {
+            return;
+        }
+        long bytes = 0;
+        int fieldLen = meta.size();
+        for (int idf = 0; idf < fieldLen; idf++)
+        {
+            switch (meta.getType(idf))
+            {
+                case StructMeta.TYPE_STRING:
+                    String strVal = meta.getString(struct, idf);
+                    bytes += VALUE_OVERHEAD + (strVal == null ? 0 : strVal.length());
+                    break;
+                case StructMeta.TYPE_INT:
+                    bytes += VALUE_OVERHEAD + 4;
+                    break;
+                case StructMeta.TYPE_DOUBLE:
+                    bytes += VALUE_OVERHEAD + 8;
+                    break;
+                default:
+                    break;
+            }
+        }
+        double average = stats.rowBytes;
+        stats.rowBytes = average == 0 ? bytes : average * 0.9 + bytes * 0.1;
+    }
+
+    /**
+     * End of the read: the last decision is kept for the next read of the same shape
+     */
+    public void finish()
+    {
+        if (finished)
+        {
+            return;
+        }
+        finished = true;
+        stats.fetchSize = fetchSize;
+        publish();
+    }
+
+    /**
+     * Decision at the end of a fetch window
+     */
+    private void endWindow()
+    {
+        int windowLen = windowRows;
+        double rowNanos = (double) windowNanos / windowLen;
+        stats.fetchNanos = windowNanos;
+        windowRows = 0;
+        windowNanos = 0;
+
+        if (windowLen < fetchSize)
+        {
+            // window cut by the limit: not comparable
+            return;
+        }
+
+        int cap = maxBySize();
+        int next = fetchSize;
+        if (fetchSize > cap)
+        {
+            next = cap;
+        }
+        else if (stats.rowNanos == 0 || rowNanos < stats.rowNanos * 0.9)
+        {
+            // larger fetches still pay
+            next = Math.min(fetchSize * 2, cap);
+        }
+        stats.rowNanos = stats.rowNanos == 0 ? rowNanos : Math.min(stats.rowNanos, rowNanos);
+
+        if (next != fetchSize)
+        {
+            fetchSize = next;
+            if (metricPrefix != null)
+            {
+                DataMetrics.increment(metricPrefix + "adjustments");
+            }
+            apply();
+        }
+        publish();
+    }
+
+    private int maxBySize()
+    {
+        double rowBytes = Math.max(stats.rowBytes, 1);
+        long rowsInBudget = (long) (memoryBudget / rowBytes);
+        return (int) Math.max(MIN_FETCH_SIZE, Math.min(MAX_FETCH_SIZE, rowsInBudget));
+    }
+
+    private void apply()
+    {
+        int wanted = Math.min(fetchSize, limit);
+        if (rset == null || wanted == applied)
+        {
+            return;
+        }
+        applied = wanted;
+        try
+        {
+            rset.setFetchSize(wanted);
+        }
+        catch (SQLException sqlexc)
+        {
+            // hint not supported by the driver
+        }
+    }
+
+    private void publish()
+    {
+        if (metricPrefix == null)
+        {
+            return;
+        }
+        DataMetrics.set(metricPrefix + "fetchSize", fetchSize);
+        DataMetrics.set(metricPrefix + "rowBytes", (long) stats.rowBytes);
+        DataMetrics.set(metricPrefix + "fetchMicros", stats.fetchNanos / 1000);
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON encoder of DataStruct writing UTF-8 bytes (same layout of DataMirror.asJSON()).
+ * Only '"', '\\' and control chars are escaped: the escape decision is a table lookup,
+ * and clean runs are found 4 chars at a time (SWAR on a long) and copied in bulk.
+ * asciiOnly(true) keeps the DataMirror.escape() rules (\\uXXXX over 0x7F, ' and / escaped) for old clients.
+ * List fields (children, see DataGraph) are written as nested arrays.
+ * Not thread safe: one encoder per output.
+ */
+public class JsonEncoder
+{
+
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    private static final byte[] HEX =
+    {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+    /**
+     * ASCII escapes: 0 = copy, 'u' = \\u00XX, else the char after the backslash
+     */
+    private static final byte[] ESCAPE = new byte[128];
+    /**
+     * ASCII escapes of DataMirror.escape()
+     */
+    private static final byte[] ESCAPE_ASCII = new byte[128];
+    private static final long LANES_LOW = 0x0001000100010001L;
+    private static final long LANES_HIGH = 0x8000800080008000L;
+    private static final long NON_ASCII = 0xFF80FF80FF80FF80L;
+
+    static
+    {
+        for (int ch = 0; ch < 32; ch++)
+        {
+            ESCAPE[ch] = 'u';
+        }
+        ESCAPE['\b'] = 'b';
+        ESCAPE['\t'] = 't';
+        ESCAPE['\n'] = 'n';
+        ESCAPE['\f'] = 'f';
+        ESCAPE['\r'] = 'r';
+        ESCAPE['"'] = '"';
+        ESCAPE['\\'] = '\\';
+
+        System.arraycopy(ESCAPE, 0, ESCAPE_ASCII, 0, ESCAPE.length);
+        ESCAPE_ASCII['\''] = '\'';
+        ESCAPE_ASCII['/'] = '/';
+    }
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int count = 0;
+    private char[] chars = new char[256];
+    private final byte[] digits = new byte[11];
+    private boolean asciiOnly = false;
+    /**
+     * quoted field names + ':' by struct class
+     */
+    private final Map<Class, byte[][]> names = new IdentityHashMap<Class, byte[][]>();
+
+    public JsonEncoder(OutputStream out)
+    {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    public JsonEncoder(OutputStream out, int bufferSize)
+    {
+        this.out = out;
+        this.buffer = new byte[Math.max(bufferSize, 16)];
+    }
+
+    /**
+     * Compatibility escaping of DataMirror.asJSON(): ASCII only output
+     */
+    public JsonEncoder asciiOnly(boolean asciiOnly)
+    {
+        this.asciiOnly = asciiOnly;
+        this.names.clear();
+        return this;
+    }
+
+    /**
+     * Encode a struct
+     * @return UTF-8 JSON
+     */
+    public static byte[] encode(DataStruct dataStruct)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        JsonEncoder encoder = new JsonEncoder(bytes, 256);
+        try
+        {
+            encoder.writeStruct(dataStruct);
+            encoder.flush();
+        }
+        catch (IOException ioexc)
+        {
+            // not thrown by ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write a struct as JSON object, with all values as strings (as DataMirror.asJSON())
+     */
+    public void writeStruct(DataStruct dataStruct) throws IOException
+    {
+        StructMeta meta = StructMeta.of(dataStruct);
+        byte[][] fieldNames = fieldNames(meta);
+
+        put((byte) '{');
+        boolean first = true;
+        int fieldLen = meta.size();
+        for (int idf = 0; idf < fieldLen; idf++)
+        {
+            int type = meta.getType(idf);
+            String strVal = null;
+            List children = null;
+            if (type == StructMeta.TYPE_STRING || type == StructMeta.TYPE_OTHER)
+            {
+                Object value = meta.get(dataStruct, idf);
+                if (value == null)
+                {
+                    continue;
+                }
+                if (value instanceof List)
+                {
+                    children = (List) value;
+                }
+                strVal = type == StructMeta.TYPE_STRING ? (String) value : "";
+            }
+
+            if (!first)
+            {
+                put((byte) ',');
+                put((byte) ' ');
+            }
+            first = false;
+            put(fieldNames[idf], 0, fieldNames[idf].length);
+
+            if (children != null)
+            {
+                writeArray(children);
+                continue;
+            }
+
+            put((byte) '"');
+            switch (type)
+            {
+                case StructMeta.TYPE_INT:
+                    writeInt(meta.getInt(dataStruct, idf));
+                    break;
+                case StructMeta.TYPE_DOUBLE:
+                    writeAscii(Double.toString(meta.getDouble(dataStruct, idf)));
+                    break;
+                default:
+                    writeEscaped(strVal);
+                    break;
+            }
+            put((byte) '"');
+        }
+        put((byte) '}');
+    }
+
+    /**
+     * Write a list as JSON array: DataStruct elements as objects, others as strings
+     * (children loaded by DataGraph)
+     */
+    public void writeArray(List list) throws IOException
+    {
+        put((byte) '[');
+        int size = list.size();
+        for (int idx = 0; idx < size; idx++)
+        {
+            if (idx > 0)
+            {
+                put((byte) ',');
+                put((byte) ' ');
+            }
+            Object item = list.get(idx);
+            if (item instanceof DataStruct)
+            {
+                writeStruct((DataStruct) item);
+            }
+            else
+            {
+                writeString(item == null ? "" : item.toString());
+            }
+        }
+        put((byte) ']');
+    }
+
+    /**
+     * Write a quoted JSON string
+     */
+    public void writeString(String str) throws IOException
+    {
+        put((byte) '"');
+        if (str != null)
+        {
+            writeEscaped(str);
+        }
+        put((byte) '"');
+    }
+
+    /**
+     * Write bytes as they are (e.g. separators of an array)
+     */
+    public void writeRaw(String ascii) throws IOException
+    {
+        writeAscii(ascii);
+    }
+
+    public void flush() throws IOException
+    {
+        if (count > 0)
+        {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        out.flush();
+    }
+
+    private byte[][] fieldNames(StructMeta meta) throws IOException
+    {
+        byte[][] fieldNames = names.get(meta.getStructClass());
+        if (fieldNames == null)
+        {
+            fieldNames = new byte[meta.size()][];
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            JsonEncoder encoder = new JsonEncoder(bytes, 64).asciiOnly(asciiOnly);
+            for (int idf = 0; idf < fieldNames.length; idf++)
+            {
+                bytes.reset();
+                encoder.writeString(meta.getName(idf));
+                encoder.put((byte) ':');
+                encoder.flush();
+                fieldNames[idf] = bytes.toByteArray();
+            }
+            names.put(meta.getStructClass(), fieldNames);
+        }
+        return fieldNames;
+    }
+
+    private void writeEscaped(String str) throws IOException
+    {
+        int len = str.length();
+        if (chars.length < len)
+        {
+            chars = new char[Math.max(len, chars.length * 2)];
+        }
+        str.getChars(0, len, chars, 0);
+
+        byte[] escapes = asciiOnly ? ESCAPE_ASCII : ESCAPE;
+        int pos = 0;
+        while (pos < len)
+        {
+            int end = cleanRun(chars, pos, len, escapes);
+            copyAscii(chars, pos, end);
+            if (end == len)
+            {
+                break;
+            }
+
+            char ch = chars[end];
+            pos = end + 1;
+            if (ch < 0x80)
+            {
+                byte esc = escapes[ch];
+                if (esc == 'u')
+                {
+                    writeUnicodeEscape(ch);
+                }
+                else
+                {
+                    put((byte) '\\');
+                    put(esc);
+                }
+            }
+            else if (asciiOnly)
+            {
+                writeUnicodeEscape(ch);
+            }
+            else if (ch < 0x800)
+            {
+                put((byte) (0xC0 | (ch >> 6)));
+                put((byte) (0x80 | (ch & 0x3F)));
+            }
+            else if (Character.isHighSurrogate(ch) && pos < len && Character.isLowSurrogate(chars[pos]))
+            {
+                int codePoint = Character.toCodePoint(ch, chars[pos]);
+                pos++;
+                put((byte) (0xF0 | (codePoint >> 18)));
+                put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                put((byte) (0x80 | (codePoint & 0x3F)));
+            }
+            else if (Character.isSurrogate(ch))
+            {
+                // lone surrogate: not encodable in UTF-8
+                writeUnicodeEscape(ch);
+            }
+            else
+            {
+                put((byte) (0xE0 | (ch >> 12)));
+                put((byte) (0x80 | ((ch >> 6) & 0x3F)));
+                put((byte) (0x80 | (ch & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * End of the run of chars to copy as they are, starting from pos
+     */
+    private static int cleanRun(char[] chars, int pos, int len, byte[] escapes)
+    {
+        boolean ascii = escapes == ESCAPE_ASCII;
+        // 4 chars for each long, one 16 bit lane per char
+        while (pos + 4 <= len)
+        {
+            long word = chars[pos] | ((long) chars[pos + 1] << 16)
+                    | ((long) chars[pos + 2] << 32) | ((long) chars[pos + 3] << 48);
+            if ((word & NON_ASCII) != 0
+                    || hasLess(word, 0x20)
+                    || hasValue(word, '"')
+                    || hasValue(word, '\\')
+                    || (ascii && (hasValue(word, '\'') || hasValue(word, '/'))))
+            {
+                break;
+            }
+            pos += 4;
+        }
+        while (pos < len)
+        {
+            char ch = chars[pos];
+            if (ch >= 0x80 || escapes[ch] != 0)
+            {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Some lane lower than n (lanes under 0x80)
+     */
+    private static boolean hasLess(long word, int n)
+    {
+        return ((word - LANES_LOW * n) & ~word & LANES_HIGH) != 0;
+    }
+
+    /**
+     * Some lane equal to value
+     */
+    private static boolean hasValue(long word, int value)
+    {
+        long diff = word ^ (LANES_LOW * value);
+        return ((diff - LANES_LOW) & ~diff & LANES_HIGH) != 0;
+    }
+
+    private void copyAscii(char[] src, int from, int to) throws IOException
+    {
+        while (from < to)
+        {
+            if (count == buffer.length)
+            {
+                flushBuffer();
+            }
+            int chunk = Math.min(to - from, buffer.length - count);
+            for (int idx = 0; idx < chunk; idx++)
+            {
+                buffer[count + idx] = (byte) src[from + idx];
+            }
+            count += chunk;
+            from += chunk;
+        }
+    }
+
+    private void writeUnicodeEscape(char ch) throws IOException
+    {
+        put((byte) '\\');
+        put((byte) 'u');
+        put(HEX[(ch >> 12) & 0xF]);
+        put(HEX[(ch >> 8) & 0xF]);
+        put(HEX[(ch >> 4) & 0xF]);
+        put(HEX[ch & 0xF]);
+    }
+
+    private void writeAscii(String str) throws IOException
+    {
+        int len = str.length();
+        for (int pos = 0; pos < len; pos++)
+        {
+            put((byte) str.charAt(pos));
+        }
+    }
+
+    private void writeInt(int intVal) throws IOException
+    {
+        if (intVal == Integer.MIN_VALUE)
+        {
+            writeAscii(Integer.toString(intVal));
+            return;
+        }
+        if (intVal < 0)
+        {
+            put((byte) '-');
+            intVal = -intVal;
+        }
+        int pos = digits.length;
+        do
+        {
+            digits[--pos] = (byte) ('0' + intVal % 10);
+            intVal /= 10;
+        }
+        while (intVal > 0);
+        put(digits, pos, digits.length - pos);
+    }
+
+    private void put(byte value) throws IOException
+    {
+        if (count == buffer.length)
+        {
+            flushBuffer();
+        }
+        buffer[count++] = value;
+    }
+
+    private void put(byte[] bytes, int off, int len) throws IOException
+    {
+        if (len > buffer.length - count)
+        {
+            flushBuffer();
+            if (len > buffer.length)
+            {
+                out.write(bytes, off, len);
+                return;
+            }
+        }
+        System.arraycopy(bytes, off, buffer, count, len);
+        count += len;
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+}
@@ -0,0 +1,593 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Streaming binder of a request body to a list of DataStruct, reading
+ * request.getInputStream() directly (the container parameter map is never built).
+ * URL-encoded bodies use the "field_N" naming of DataMirror.loadFromRequests(),
+ * decoded with the mirror charset; JSON bodies are an array of flat objects
+ * (or a single object), one struct each.
+ */
+public class RequestBinder
+{
+
+    public static final int DEFAULT_MAX_VALUE_LENGTH = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int ERR_MAX_SIZE = 10;
+    private final StructMeta meta;
+    private Charset charset = Charset.forName(DataMirror.ENCODING);
+    private int maxValueLength = DEFAULT_MAX_VALUE_LENGTH;
+    private InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufPos = 0;
+    private int bufLen = 0;
+    private byte[] name = new byte[64];
+    private int nameLen = 0;
+    private byte[] value = new byte[256];
+    private int valueLen = 0;
+    /**
+     * values not parsable (name, value), as DataMirror.REQUEST_ERRORS_ONLOAD
+     */
+    private final String[][] errors = new String[ERR_MAX_SIZE][2];
+    private int errCount = 0;
+
+    /**
+     * Constructor
+     *
+     * @param dataStruct model of the bound structs
+     */
+    public RequestBinder(DataStruct dataStruct)
+    {
+        this.meta = StructMeta.of(dataStruct);
+    }
+
+    /**
+     * Charset of URL-encoded bodies (default DataMirror encoding)
+     */
+    public RequestBinder charset(String charsetName)
+    {
+        this.charset = Charset.forName(charsetName);
+        return this;
+    }
+
+    /**
+     * Max length of a single name or value (bytes), longer bodies are rejected
+     */
+    public RequestBinder maxValueLength(int maxValueLength)
+    {
+        this.maxValueLength = maxValueLength;
+        return this;
+    }
+
+    /**
+     * Bind the request body
+     * @return structs in order of first appearance
+     * @throws IOException on read errors or malformed JSON
+     */
+    public List<DataStruct> bind(HttpServletRequest request) throws IOException
+    {
+        List<DataStruct> structs = bind(request.getInputStream(), request.getContentType());
+        if (errCount > 0)
+        {
+            request.setAttribute(DataMirror.REQUEST_ERRORS_ONLOAD, getErrors());
+        }
+        return structs;
+    }
+
+    /**
+     * Bind a body
+     * @param in body
+     * @param contentType "application/json", otherwise URL-encoded
+     */
+    public List<DataStruct> bind(InputStream in, String contentType) throws IOException
+    {
+        this.in = in;
+        bufPos = 0;
+        bufLen = 0;
+        errCount = 0;
+        if (contentType != null && contentType.toLowerCase().indexOf("json") >= 0)
+        {
+            return bindJSON();
+        }
+        return bindForm();
+    }
+
+    /**
+     * Values not parsable of the last bind (int fields), as loadFromRequest()
+     * @return [n][2] with name and value (first 10), null if none
+     */
+    public String[][] getErrors()
+    {
+        if (errCount == 0)
+        {
+            return null;
+        }
+        String[][] copy = new String[ERR_MAX_SIZE][];
+        for (int idx = 0; idx < ERR_MAX_SIZE; idx++)
+        {
+            copy[idx] = errors[idx].clone();
+        }
+        return copy;
+    }
+
+    private void addError(String fieldName, String fieldValue)
+    {
+        if (errCount < ERR_MAX_SIZE)
+        {
+            errors[errCount][0] = fieldName;
+            errors[errCount][1] = fieldValue;
+        }
+        errCount++;
+    }
+
+    private int read() throws IOException
+    {
+        if (bufPos == bufLen)
+        {
+            bufLen = in.read(buffer, 0, buffer.length);
+            bufPos = 0;
+            if (bufLen <= 0)
+            {
+                bufLen = 0;
+                return -1;
+            }
+        }
+        return buffer[bufPos++] & 0xff;
+    }
+
+    private void appendName(int ch) throws IOException
+    {
+        if (nameLen == name.length)
+        {
+            name = grow(name);
+        }
+        name[nameLen++] = (byte) ch;
+    }
+
+    private void appendValue(int ch) throws IOException
+    {
+        if (valueLen == value.length)
+        {
+            value = grow(value);
+        }
+        value[valueLen++] = (byte) ch;
+    }
+
+    private byte[] grow(byte[] bytes) throws IOException
+    {
+        if (bytes.length >= maxValueLength)
+        {
+            throw new IOException("Request value longer than " + maxValueLength + " bytes");
+        }
+        byte[] larger = new byte[Math.min(bytes.length * 2, maxValueLength)];
+        System.arraycopy(bytes, 0, larger, 0, bytes.length);
+        return larger;
+    }
+
+    /**
+     * application/x-www-form-urlencoded: name=value&name=value...
+     */
+    private List<DataStruct> bindForm() throws IOException
+    {
+        Map<String, DataStruct> structs = new LinkedHashMap<String, DataStruct>();
+        nameLen = 0;
+        valueLen = 0;
+        boolean inValue = false;
+
+        int ch = read();
+        while (true)
+        {
+            if (ch == '&' || ch < 0)
+            {
+                if (nameLen > 0)
+                {
+                    bindPair(structs);
+                }
+                if (ch < 0)
+                {
+                    break;
+                }
+                nameLen = 0;
+                valueLen = 0;
+                inValue = false;
+            }
+            else if (ch == '=' && !inValue)
+            {
+                inValue = true;
+            }
+            else
+            {
+                if (ch == '+')
+                {
+                    ch = ' ';
+                }
+                else if (ch == '%')
+                {
+                    int hi = hex(read());
+                    int lo = hex(read());
+                    if (hi < 0 || lo < 0)
+                    {
+                        throw new IOException("Malformed URL-encoded body");
+                    }
+                    ch = (hi << 4) | lo;
+                }
+                if (inValue)
+                {
+                    appendValue(ch);
+                }
+                else
+                {
+                    appendName(ch);
+                }
+            }
+            ch = read();
+        }
+
+        return new ArrayList<DataStruct>(structs.values());
+    }
+
+    private static int hex(int ch)
+    {
+        if (ch >= '0' && ch <= '9')
+        {
+            return ch - '0';
+        }
+        if (ch >= 'a' && ch <= 'f')
+        {
+            return ch - 'a' + 10;
+        }
+        if (ch >= 'A' && ch <= 'F')
+        {
+            return ch - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Route "field_N" to the struct N, as DataMirror.loadFromRequests()
+     */
+    private void bindPair(Map<String, DataStruct> structs)
+    {
+        int posSep = -1;
+        for (int pos = 0; pos < nameLen; pos++)
+        {
+            if (name[pos] == '_')
+            {
+                posSep = pos;
+                break;
+            }
+        }
+        if (posSep < 0)
+        {
+            return;
+        }
+
+        int idf = meta.indexOf(new String(name, 0, posSep, charset));
+        if (idf < 0)
+        {
+            return;
+        }
+
+        String pos = new String(name, posSep + 1, nameLen - posSep - 1, charset);
+        DataStruct struct = structs.get(pos);
+        if (struct == null)
+        {
+            struct = meta.newInstance();
+            structs.put(pos, struct);
+        }
+        setField(struct, idf, charset);
+    }
+
+    /**
+     * Set a field from the value bytes (rules of DataMirror.loadFromRequests())
+     */
+    private void setField(DataStruct struct, int idf, Charset valueCharset)
+    {
+        switch (meta.getType(idf))
+        {
+            case StructMeta.TYPE_STRING:
+                String strVal = new String(value, 0, valueLen, valueCharset);
+                if (!DataMirror.isNullOrEmpty(strVal))
+                {
+                    meta.set(struct, idf, strVal);
+                }
+                break;
+            case StructMeta.TYPE_INT:
+                if (!ByteParser.isInt(value, 0, valueLen))
+                {
+                    // as new Integer() in loadFromRequests(): field unchanged, error recorded
+                    addError(meta.getName(idf), new String(value, 0, valueLen, valueCharset));
+                    break;
+                }
+                // sentinels become a real zero or NULL
+                int intVal = DataMirror.markInt(struct, idf, ByteParser.parseInt(value, 0, valueLen));
+                meta.setInt(struct, idf, intVal);
+                break;
+            case StructMeta.TYPE_DOUBLE:
+                // not parsable: 0, not set (as gdv())
+                double dblVal = ByteParser.parseDouble(value, 0, valueLen, valueCharset);
+                meta.setDouble(struct, idf, DataMirror.markDouble(struct, idf, dblVal));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * JSON: [ {"field": value, ...}, ... ] or a single object
+     */
+    private List<DataStruct> bindJSON() throws IOException
+    {
+        List<DataStruct> structs = new ArrayList<DataStruct>();
+        int ch = skipSpaces(read());
+        if (ch == '{')
+        {
+            structs.add(readObject());
+        }
+        else if (ch == '[')
+        {
+            ch = skipSpaces(read());
+            while (ch != ']')
+            {
+                if (ch != '{')
+                {
+                    throw new IOException("JSON object expected");
+                }
+                structs.add(readObject());
+                ch = skipSpaces(read());
+                if (ch == ',')
+                {
+                    ch = skipSpaces(read());
+                }
+                else if (ch != ']')
+                {
+                    throw new IOException("Malformed JSON array");
+                }
+            }
+        }
+        else if (ch >= 0)
+        {
+            throw new IOException("JSON object or array expected");
+        }
+        return structs;
+    }
+
+    /**
+     * Read an object (after '{') into a new struct
+     */
+    private DataStruct readObject() throws IOException
+    {
+        DataStruct struct = meta.newInstance();
+        int ch = skipSpaces(read());
+        while (ch != '}')
+        {
+            if (ch != '"')
+            {
+                throw new IOException("JSON field name expected");
+            }
+            valueLen = 0;
+            readString();
+            int idf = meta.indexOf(new String(value, 0, valueLen, UTF8));
+
+            if (skipSpaces(read()) != ':')
+            {
+                throw new IOException("Malformed JSON object");
+            }
+
+            ch = skipSpaces(read());
+            valueLen = 0;
+            boolean isNull = false;
+            if (ch == '"')
+            {
+                readString();
+                ch = skipSpaces(read());
+            }
+            else if (ch == '{' || ch == '[')
+            {
+                // nested values are not bound
+                skipNested(ch);
+                idf = -1;
+                ch = skipSpaces(read());
+            }
+            else
+            {
+                // number, true, false, null
+                while (ch >= 0 && ch != ',' && ch != '}' && ch > ' ')
+                {
+                    appendValue(ch);
+                    ch = read();
+                }
+                isNull = valueLen == 4 && value[0] == 'n' && value[1] == 'u' && value[2] == 'l' && value[3] == 'l';
+                ch = skipSpaces(ch);
+            }
+
+            if (idf >= 0 && isNull && meta.getType(idf) != StructMeta.TYPE_OTHER)
+            {
+                struct.loadedNull(idf);
+            }
+            else if (idf >= 0)
+            {
+                setField(struct, idf, UTF8);
+            }
+
+            if (ch == ',')
+            {
+                ch = skipSpaces(read());
+            }
+            else if (ch != '}')
+            {
+                throw new IOException("Malformed JSON object");
+            }
+        }
+        return struct;
+    }
+
+    /**
+     * Read a string (after the opening quote) into the value bytes, as UTF-8
+     */
+    private void readString() throws IOException
+    {
+        int ch = read();
+        while (ch != '"')
+        {
+            if (ch < 0)
+            {
+                throw new IOException("Unterminated JSON string");
+            }
+            if (ch == '\\')
+            {
+                ch = read();
+                switch (ch)
+                {
+                    case 'b':
+                        appendValue('\b');
+                        break;
+                    case 'f':
+                        appendValue('\f');
+                        break;
+                    case 'n':
+                        appendValue('\n');
+                        break;
+                    case 'r':
+                        appendValue('\r');
+                        break;
+                    case 't':
+                        appendValue('\t');
+                        break;
+                    case 'u':
+                        appendCodeUnit(readHex4());
+                        break;
+                    default:
+                        if (ch < 0)
+                        {
+                            throw new IOException("Unterminated JSON string");
+                        }
+                        appendValue(ch);
+                        break;
+                }
+            }
+            else
+            {
+                appendValue(ch);
+            }
+            ch = read();
+        }
+    }
+
+    private int readHex4() throws IOException
+    {
+        int code = 0;
+        for (int idx = 0; idx < 4; idx++)
+        {
+            int digit = hex(read());
+            if (digit < 0)
+            {
+                throw new IOException("Malformed JSON unicode escape");
+            }
+            code = (code << 4) | digit;
+        }
+        return code;
+    }
+
+    /**
+     * UTF-8 encode an escaped UTF-16 code unit (surrogate pairs joined)
+     */
+    private void appendCodeUnit(int code) throws IOException
+    {
+        if (Character.isHighSurrogate((char) code))
+        {
+            // the low surrogate must follow as \\uXXXX
+            if (read() != '\\' || read() != 'u')
+            {
+                throw new IOException("Malformed JSON surrogate pair");
+            }
+            int low = readHex4();
+            code = Character.toCodePoint((char) code, (char) low);
+        }
+
+        if (code < 0x80)
+        {
+            appendValue(code);
+        }
+        else if (code < 0x800)
+        {
+            appendValue(0xC0 | (code >> 6));
+            appendValue(0x80 | (code & 0x3F));
+        }
+        else if (code < 0x10000)
+        {
+            appendValue(0xE0 | (code >> 12));
+            appendValue(0x80 | ((code >> 6) & 0x3F));
+            appendValue(0x80 | (code & 0x3F));
+        }
+        else
+        {
+            appendValue(0xF0 | (code >> 18));
+            appendValue(0x80 | ((code >> 12) & 0x3F));
+            appendValue(0x80 | ((code >> 6) & 0x3F));
+            appendValue(0x80 | (code & 0x3F));
+        }
+    }
+
+    private void skipNested(int open) throws IOException
+    {
+        int depth = 1;
+        while (depth > 0)
+        {
+            int ch = read();
+            if (ch < 0)
+            {
+                throw new IOException("Unterminated JSON value");
+            }
+            if (ch == '"')
+            {
+                valueLen = 0;
+                readString();
+            }
+            else if (ch == '{' || ch == '[')
+            {
+                depth++;
+            }
+            else if (ch == '}' || ch == ']')
+            {
+                depth--;
+            }
+        }
+        valueLen = 0;
+    }
+
+    private int skipSpaces(int ch) throws IOException
+    {
+        while (ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r')
+        {
+            ch = read();
+        }
+        return ch;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded intern table of the values of one column: equal values loaded
+ * in different rows share one String instance.
+ * When the distinct values exceed the limit the column is not worth it:
+ * the table is dropped and intern() returns the values as they are.
+ * Thread safe.
+ */
+final class StringPool
+{
+
+    private final int maxDistinct;
+    private volatile ConcurrentHashMap<String, String> values;
+    private final LongAdder hits = new LongAdder();
+    private volatile int distinct = 0;
+
+    StringPool(int maxDistinct)
+    {
+        this.maxDistinct = maxDistinct;
+        this.values = new ConcurrentHashMap<String, String>(Math.min(maxDistinct, 1024) * 2);
+    }
+
+    /**
+     * Shared instance of a value
+     * @param value loaded value (may be null)
+     * @return pooled instance, or value itself (pool dropped, or new value)
+     */
+    String intern(String value)
+    {
+        ConcurrentHashMap<String, String> pool = values;
+        if (pool == null || value == null)
+        {
+            return value;
+        }
+        String shared = pool.get(value);
+        if (shared != null)
+        {
+            hits.increment();
+            return shared;
+        }
+        if (pool.size() >= maxDistinct)
+        {
+            // high cardinality: drop the table
+            values = null;
+            return value;
+        }
+        shared = pool.putIfAbsent(value, value);
+        if (shared != null)
+        {
+            hits.increment();
+            return shared;
+        }
+        distinct = pool.size();
+        return value;
+    }
+
+    boolean isDropped()
+    {
+        return values == null;
+    }
+
+    long getHits()
+    {
+        return hits.sum();
+    }
+
+    int getDistinct()
+    {
+        return distinct;
+    }
+
+    int getMaxDistinct()
+    {
+        return maxDistinct;
+    }
+}
@@ -0,0 +1,702 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import com.jellylab.data.DataMirror.FieldComparator;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-class metadata of a DataStruct, resolved once and shared by every instance.
+ * Fields are in the same order of DataStruct.getFields() (by name ASC)
+ */
+public final class StructMeta
+{
+
+    public static final int TYPE_OTHER = 0;
+    public static final int TYPE_STRING = 1;
+    public static final int TYPE_INT = 2;
+    public static final int TYPE_DOUBLE = 3;
+    /**
+     * distinct values of a deduplicated field, over this the intern table is dropped
+     */
+    public static final int DEFAULT_MAX_DISTINCT = 10000;
+    /**
+     * metadata cache, key = DataStruct class
+     */
+    private static final ConcurrentHashMap<Class, StructMeta> CACHE = new ConcurrentHashMap<Class, StructMeta>();
+    private final Class structClass;
+    private final Field[] fields;
+    private final String[] names;
+    /**
+     * column names (upper case field names)
+     */
+    private final String[] columns;
+    private final int[] types;
+    private final Map<String, Integer> index;
+    private final Constructor constructor;
+    /**
+     * intern tables by field position (null = no deduplication), replaced on change
+     */
+    private volatile StringPool[] pools;
+
+    private StructMeta(Class structClass)
+    {
+        this.structClass = structClass;
+
+        Field[] classFields = structClass.getFields();
+        Arrays.sort(classFields, new FieldComparator());
+
+        int fieldLen = classFields.length;
+        fields = classFields;
+        names = new String[fieldLen];
+        columns = new String[fieldLen];
+        types = new int[fieldLen];
+        index = new HashMap<String, Integer>(fieldLen * 2);
+
+        for (int idf = 0; idf < fieldLen; idf++)
+        {
+            Field field = classFields[idf];
+            field.setAccessible(true);
+            names[idf] = field.getName();
+            columns[idf] = names[idf].toUpperCase();
+            types[idf] = typeOf(field.getType());
+            if (!index.containsKey(names[idf]))
+            {
+                index.put(names[idf], Integer.valueOf(idf));
+            }
+        }
+
+        Constructor ctor = null;
+        try
+        {
+            ctor = structClass.getDeclaredConstructor();
+            ctor.setAccessible(true);
+        }
+        catch (Exception exc)
+        {
+            // no empty constructor: newInstance() returns null
+        }
+        constructor = ctor;
+        pools = new StringPool[fieldLen];
+    }
+
+    /**
+     * Metadata of a DataStruct class
+     * @param structClass
+     * @return shared (cached) metadata
+     */
+    public static StructMeta of(Class structClass)
+    {
+        StructMeta meta = CACHE.get(structClass);
+        if (meta == null)
+        {
+            meta = new StructMeta(structClass);
+            // one instance per class (its dedup tables included)
+            StructMeta previous = CACHE.putIfAbsent(structClass, meta);
+            if (previous != null)
+            {
+                meta = previous;
+            }
+        }
+        return meta;
+    }
+
+    public static StructMeta of(DataStruct dataStruct)
+    {
+        return of(dataStruct.getClass());
+    }
+
+    private static int typeOf(Class type)
+    {
+        if (type.equals(String.class))
+        {
+            return TYPE_STRING;
+        }
+        else if (type.equals(int.class))
+        {
+            return TYPE_INT;
+        }
+        else if (type.equals(double.class))
+        {
+            return TYPE_DOUBLE;
+        }
+        return TYPE_OTHER;
+    }
+
+    public Class getStructClass()
+    {
+        return structClass;
+    }
+
+    public int size()
+    {
+        return fields.length;
+    }
+
+    /**
+     * All fields, ordered by name
+     * @return copy of the fields
+     */
+    public Field[] getFields()
+    {
+        return fields.clone();
+    }
+
+    /**
+     * Shared fields array, not to be changed
+     */
+    Field[] fields()
+    {
+        return fields;
+    }
+
+    public Field getField(int idf)
+    {
+        return fields[idf];
+    }
+
+    public String getName(int idf)
+    {
+        return names[idf];
+    }
+
+    public String getColumn(int idf)
+    {
+        return columns[idf];
+    }
+
+    public int getType(int idf)
+    {
+        return types[idf];
+    }
+
+    /**
+     * Position of a field
+     * @param name field name (case sensitive)
+     * @return field position, -1 if not found
+     */
+    public int indexOf(String name)
+    {
+        Integer idf = index.get(name);
+        if (idf == null)
+        {
+            return -1;
+        }
+        return idf.intValue();
+    }
+
+    /**
+     * Default key fields: String/int/double fields with PKID in the name
+     * @return field positions
+     */
+    int[] keyFields()
+    {
+        List<Integer> pkidFields = new ArrayList<Integer>();
+        for (int idf = 0; idf < fields.length; idf++)
+        {
+            if (types[idf] != TYPE_OTHER && columns[idf].indexOf("PKID") >= 0)
+            {
+                pkidFields.add(Integer.valueOf(idf));
+            }
+        }
+        int[] keys = new int[pkidFields.size()];
+        for (int idk = 0; idk < keys.length; idk++)
+        {
+            keys[idk] = pkidFields.get(idk).intValue();
+        }
+        return keys;
+    }
+
+    /**
+     * Declared key fields
+     * @param fieldNames String/int/double fields
+     * @return field positions
+     */
+    int[] keyFields(String... fieldNames)
+    {
+        int[] keys = new int[fieldNames.length];
+        for (int idk = 0; idk < fieldNames.length; idk++)
+        {
+            keys[idk] = indexOf(fieldNames[idk]);
+            if (keys[idk] < 0 || types[keys[idk]] == TYPE_OTHER)
+            {
+                throw new IllegalArgumentException("Unknown key field: " + fieldNames[idk]);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Key of a struct: the value of the single key field, or the list of values
+     * (null String as "")
+     */
+    Object key(DataStruct dataStruct, int[] keys)
+    {
+        if (keys.length == 1)
+        {
+            return keyValue(get(dataStruct, keys[0]));
+        }
+        Object[] key = new Object[keys.length];
+        for (int idk = 0; idk < keys.length; idk++)
+        {
+            key[idk] = keyValue(get(dataStruct, keys[idk]));
+        }
+        return Arrays.asList(key);
+    }
+
+    /**
+     * Key of the current row, as key() of the loaded struct
+     * @param cols ResultSet column by field position (resolveColumns())
+     * @return key, null if all the key columns are NULL
+     */
+    Object key(ResultSet rset, int[] cols, int[] keys) throws SQLException
+    {
+        Object[] key = new Object[keys.length];
+        boolean allNull = true;
+        for (int idk = 0; idk < keys.length; idk++)
+        {
+            int idf = keys[idk];
+            switch (types[idf])
+            {
+                case TYPE_INT:
+                    key[idk] = Integer.valueOf(rset.getInt(cols[idf]));
+                    break;
+                case TYPE_DOUBLE:
+                    key[idk] = Double.valueOf(rset.getDouble(cols[idf]));
+                    break;
+                default:
+                    key[idk] = keyValue(rset.getString(cols[idf]));
+                    break;
+            }
+            allNull = allNull && rset.wasNull();
+        }
+        if (allNull)
+        {
+            return null;
+        }
+        return key.length == 1 ? key[0] : Arrays.asList(key);
+    }
+
+    private static Object keyValue(Object value)
+    {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * ResultSet column index for each field (by label, case insensitive)
+     * @param prefix column prefix of the fields ("" for none), e.g. "ORD_" for ORD_CODE
+     * @return column by field position, 0 if missing
+     */
+    int[] resolveColumns(ResultSetMetaData rsmd, String prefix) throws SQLException
+    {
+        int colCount = rsmd.getColumnCount();
+        Map<String, Integer> labels = new HashMap<String, Integer>(colCount * 2);
+        for (int col = colCount; col >= 1; col--)
+        {
+            // first column wins, as in ResultSet.findColumn()
+            labels.put(rsmd.getColumnLabel(col).toUpperCase(), Integer.valueOf(col));
+        }
+
+        String upperPrefix = prefix.toUpperCase();
+        int[] cols = new int[fields.length];
+        for (int idf = 0; idf < fields.length; idf++)
+        {
+            Integer col = labels.get(upperPrefix + columns[idf]);
+            cols[idf] = col == null ? 0 : col.intValue();
+        }
+        return cols;
+    }
+
+    /**
+     * Load the struct from the current row, with the rules of DataMirror.loadFromResultSetRow()
+     * @param cols ResultSet column by field position (resolveColumns())
+     */
+    void load(DataStruct dataStruct, ResultSet rset, int[] cols)
+    {
+        dataStruct.resetPresence();
+        for (int idf = 0; idf < cols.length; idf++)
+        {
+            int col = cols[idf];
+            if (col == 0)
+            {
+                continue;
+            }
+
+            // continue on exception, as DataMirror.loadFromResultSetRow
+            try
+            {
+                switch (types[idf])
+                {
+                    case TYPE_STRING:
+                        String strVal = rset.getString(col);
+                        DataMirror.markLoaded(dataStruct, idf, rset.wasNull());
+                        set(dataStruct, idf, intern(idf, DataMirror.nvl(strVal)));
+                        break;
+                    case TYPE_INT:
+                        int intVal = rset.getInt(col);
+                        DataMirror.markLoaded(dataStruct, idf, rset.wasNull());
+                        setInt(dataStruct, idf, intVal);
+                        break;
+                    case TYPE_DOUBLE:
+                        double dblVal = rset.getDouble(col);
+                        DataMirror.markLoaded(dataStruct, idf, rset.wasNull());
+                        setDouble(dataStruct, idf, dblVal);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            catch (Exception exc)
+            {
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Deduplicate the values of String fields on bulk load (ResultSet, cursor, CSV),
+     * with DEFAULT_MAX_DISTINCT values at most
+     * @param fieldNames low cardinality fields (codes, states, categories)
+     */
+    public StructMeta dedup(String... fieldNames)
+    {
+        return dedup(DEFAULT_MAX_DISTINCT, fieldNames);
+    }
+
+    /**
+     * Deduplicate the values of String fields on bulk load.
+     * A field with more than maxDistinct values drops its table and loads as usual.
+     * Metrics: dedup.CLASS.FIELD.{distinct,hits,dropped}
+     * @param maxDistinct
+     * @param fieldNames
+     */
+    public synchronized StructMeta dedup(int maxDistinct, String... fieldNames)
+    {
+        StringPool[] newPools = pools.clone();
+        for (String fieldName : fieldNames)
+        {
+            int idf = indexOf(fieldName);
+            if (idf < 0 || types[idf] != TYPE_STRING)
+            {
+                throw new IllegalArgumentException("Not a String field: " + fieldName);
+            }
+            final StringPool pool = new StringPool(maxDistinct);
+            newPools[idf] = pool;
+
+            String prefix = "dedup." + structClass.getName() + "." + names[idf] + ".";
+            DataMetrics.gauge(prefix + "distinct", new DataMetrics.Gauge()
+            {
+                public long value()
+                {
+                    return pool.getDistinct();
+                }
+            });
+            DataMetrics.gauge(prefix + "hits", new DataMetrics.Gauge()
+            {
+                public long value()
+                {
+                    return pool.getHits();
+                }
+            });
+            DataMetrics.gauge(prefix + "dropped", new DataMetrics.Gauge()
+            {
+                public long value()
+                {
+                    return pool.isDropped() ? 1 : 0;
+                }
+            });
+        }
+        pools = newPools;
+        return this;
+    }
+
+    /**
+     * Switch off deduplication on all fields
+     */
+    public synchronized StructMeta noDedup()
+    {
+        pools = new StringPool[fields.length];
+        DataMetrics.remove("dedup." + structClass.getName() + ".");
+        return this;
+    }
+
+    /**
+     * Field deduplicated, with the table still active
+     */
+    public boolean isDedup(int idf)
+    {
+        StringPool pool = pools[idf];
+        return pool != null && !pool.isDropped();
+    }
+
+    /**
+     * Shared instance of a loaded value
+     * @param idf field position
+     * @param value
+     * @return pooled instance, or value itself
+     */
+    public String intern(int idf, String value)
+    {
+        StringPool pool = pools[idf];
+        if (pool == null)
+        {
+            return value;
+        }
+        return pool.intern(value);
+    }
+
+    /**
+     * New empty DataStruct of this class, without Class.newInstance() lookup
+     * @return new instance, null if the class can't be instantiated
+     */
+    public DataStruct newInstance()
+    {
+        if (constructor == null)
+        {
+            return null;
+        }
+        try
+        {
+            return (DataStruct) constructor.newInstance();
+        }
+        catch (Exception exc)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Words of a bitmap by field position
+     */
+    public int words()
+    {
+        return (fields.length + 63) >>> 6;
+    }
+
+    /**
+     * Fields set: by value (non-empty String, non-zero int/double, ZERO_VALUE and
+     * NULL_VALUE included) or flagged with DataStruct.markSet()/markNull()
+     * @return bitmap by field position (new array)
+     */
+    public long[] setBits(DataStruct dataStruct)
+    {
+        return bits(dataStruct, null);
+    }
+
+    /**
+     * Fields set to NULL: NULL_VALUE sentinel, or flagged NULL (markNull(), NULL column on load)
+     * while the value is still zero or empty (a value assigned later wins over the flag)
+     * @return bitmap by field position (new array)
+     */
+    public long[] nullBits(DataStruct dataStruct)
+    {
+        long[] nulls = new long[words()];
+        bits(dataStruct, nulls);
+        return nulls;
+    }
+
+    /**
+     * Set and NULL fields in a single pass (rules of setBits() and nullBits()).
+     * The flags alone are not enough: public fields are also assigned directly,
+     * so each value is still read once
+     * @param nulls receives the NULL fields (words() long), null if not needed
+     * @return set fields (new array)
+     */
+    public long[] bits(DataStruct dataStruct, long[] nulls)
+    {
+        long[] flags = dataStruct.nullBits();
+        long[] bits = new long[words()];
+        for (int idf = 0; idf < fields.length; idf++)
+        {
+            boolean flagged = flags != null && isSet(flags, idf);
+            boolean set = false;
+            boolean isNull = false;
+            switch (types[idf])
+            {
+                case TYPE_STRING:
+                    String strVal = getString(dataStruct, idf);
+                    set = strVal != null && !strVal.equals("");
+                    isNull = flagged && !set;
+                    break;
+                case TYPE_INT:
+                    int intVal = getInt(dataStruct, idf);
+                    set = intVal != 0;
+                    isNull = intVal == DataMirror.NULL_VALUE || (flagged && !set);
+                    break;
+                case TYPE_DOUBLE:
+                    double dblVal = getDouble(dataStruct, idf);
+                    set = dblVal != 0;
+                    isNull = dblVal == DataMirror.NULL_VALUE || (flagged && !set);
+                    break;
+                default:
+                    break;
+            }
+            if (set)
+            {
+                bits[idf >>> 6] |= 1L << idf;
+            }
+            if (isNull && nulls != null)
+            {
+                nulls[idf >>> 6] |= 1L << idf;
+            }
+        }
+
+        long[] presence = dataStruct.presenceBits();
+        if (presence != null)
+        {
+            for (int word = 0; word < bits.length; word++)
+            {
+                bits[word] |= presence[word];
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Next set bit
+     * @param bits bitmap
+     * @param from first position to check
+     * @return position, -1 if none
+     */
+    public static int nextSet(long[] bits, int from)
+    {
+        int word = from >>> 6;
+        if (word >= bits.length)
+        {
+            return -1;
+        }
+        long value = bits[word] & (-1L << from);
+        while (true)
+        {
+            if (value != 0)
+            {
+                return (word << 6) + Long.numberOfTrailingZeros(value);
+            }
+            if (++word == bits.length)
+            {
+                return -1;
+            }
+            value = bits[word];
+        }
+    }
+
+    public static boolean isSet(long[] bits, int idf)
+    {
+        return (bits[idf >>> 6] & (1L << idf)) != 0;
+    }
+
+    /**
+     * Number of set bits
+     */
+    public static int count(long[] bits)
+    {
+        int count = 0;
+        for (int word = 0; word < bits.length; word++)
+        {
+            count += Long.bitCount(bits[word]);
+        }
+        return count;
+    }
+
+    public Object get(DataStruct dataStruct, int idf)
+    {
+        try
+        {
+            return fields[idf].get(dataStruct);
+        }
+        catch (IllegalAccessException illexc)
+        {
+            throw new IllegalStateException(illexc);
+        }
+    }
+
+    public String getString(DataStruct dataStruct, int idf)
+    {
+        return (String) get(dataStruct, idf);
+    }
+
+    public int getInt(DataStruct dataStruct, int idf)
+    {
+        try
+        {
+            return fields[idf].getInt(dataStruct);
+        }
+        catch (IllegalAccessException illexc)
+        {
+            throw new IllegalStateException(illexc);
+        }
+    }
+
+    public double getDouble(DataStruct dataStruct, int idf)
+    {
+        try
+        {
+            return fields[idf].getDouble(dataStruct);
+        }
+        catch (IllegalAccessException illexc)
+        {
+            throw new IllegalStateException(illexc);
+        }
+    }
+
+    public void set(DataStruct dataStruct, int idf, Object value)
+    {
+        try
+        {
+            fields[idf].set(dataStruct, value);
+        }
+        catch (IllegalAccessException illexc)
+        {
+            throw new IllegalStateException(illexc);
+        }
+    }
+
+    public void setInt(DataStruct dataStruct, int idf, int value)
+    {
+        try
+        {
+            fields[idf].setInt(dataStruct, value);
+        }
+        catch (IllegalAccessException illexc)
+        {
+            throw new IllegalStateException(illexc);
+        }
+    }
+
+    public void setDouble(DataStruct dataStruct, int idf, double value)
+    {
+        try
+        {
+            fields[idf].setDouble(dataStruct, value);
+        }
+        catch (IllegalAccessException illexc)
+        {
+            throw new IllegalStateException(illexc);
+        }
+    }
+}
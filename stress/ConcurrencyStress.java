@@ -0,0 +1,500 @@
+/*
+ * Copyright 2009-2015 Paolo Conte
+ * This library is part of the Jelly framework.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jellylab.data;
+
+import com.jellylab.data.DataMirror.DataStruct;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Concurrency stress of the conversion paths: every thread converts the same shared
+ * struct (JSON, writeJSON, JsonEncoder, where clause, prepare, query string, toString,
+ * getFields, CSV write and read) and loads new structs from shared in-memory requests
+ * (loadFromRequest, loadFromRequests, RequestBinder) and from in-memory ResultSets
+ * (loadFromResultSetRow, DataCursor), checking each output against the single thread one.
+ * Throughput is recorded at 1, 4, 16 and 64 threads.
+ *
+ * Run: java -cp classes:stress-classes com.jellylab.data.ConcurrencyStress [millis] [minScaling]
+ * Exit status 1 on a wrong output, 2 when the throughput at a thread count falls
+ * below minScaling (default 0.5) times the best throughput at fewer threads.
+ */
+public final class ConcurrencyStress
+{
+
+    private static final int[] THREADS =
+    {
+        1, 4, 16, 64
+    };
+    private static final long DEFAULT_MILLIS = 1000;
+    private static final double DEFAULT_MIN_SCALING = 0.5;
+    private static final String[] PATHS =
+    {
+        "asJSON", "whereClause", "asQueryString", "toString", "getFields", "prepare",
+        "writeJSON", "JsonEncoder", "DataCsv.write", "DataCsv.readAll", "loadFromRequest",
+        "loadFromRequests", "RequestBinder", "loadFromResultSetRow", "DataCursor"
+    };
+    private static final String[] COLUMNS =
+    {
+        "ZETA", "ALPHA", "MID", "BETA", "GAMMA", "REFPKID"
+    };
+    private static final Object[][] ROWS =
+    {
+        {
+            "z1", Integer.valueOf(1), Double.valueOf(1.5), "b1", Integer.valueOf(0), Integer.valueOf(10)
+        },
+        {
+            "z\"2", Integer.valueOf(0), null, null, Integer.valueOf(7), Integer.valueOf(11)
+        },
+        {
+            "\u00e8 3", Integer.valueOf(-3), Double.valueOf(0), "b3", null, Integer.valueOf(12)
+        }
+    };
+    private final DataStruct shared;
+    private final HttpServletRequest request;
+    private final HttpServletRequest requests;
+    private final byte[] body;
+    /**
+     * single thread outputs, by path
+     */
+    private final String[] expected;
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+
+    /**
+     * Field names out of order and mixed case, to catch unsorted field arrays
+     */
+    public static class Ref extends DataStruct
+    {
+
+        public String zeta;
+        public int alpha;
+        public double mid;
+        public String beta;
+        public int Gamma;
+        public int refPkid;
+    }
+
+    private ConcurrencyStress() throws Exception
+    {
+        Ref ref = new Ref();
+        ref.zeta = "z \"quoted\"";
+        ref.alpha = 3;
+        ref.mid = 1.25;
+        ref.beta = "\u00e0\u00e8";
+        ref.Gamma = 0;
+        ref.refPkid = 42;
+        ref.markSet("Gamma");
+        shared = ref;
+
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        params.put("zeta", "z");
+        params.put("alpha", "5");
+        params.put("mid", "2,5");
+        params.put("Gamma", "-1");
+        params.put("refPkid", "9");
+        request = request(params);
+
+        Map<String, String> multi = new LinkedHashMap<String, String>();
+        multi.put("zeta_1", "first");
+        multi.put("alpha_1", "1");
+        multi.put("zeta_2", "second");
+        multi.put("mid_2", "0.5");
+        multi.put("refPkid_2", "2");
+        requests = request(multi);
+
+        body = ("[{\"zeta\":\"j\",\"alpha\":2,\"mid\":0.5,\"beta\":null,\"refPkid\":1},"
+                + "{\"zeta\":\"k\\\"q\",\"Gamma\":0,\"refPkid\":2}]").getBytes("UTF-8");
+
+        expected = convert();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_MILLIS;
+        double minScaling = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_MIN_SCALING;
+
+        ConcurrencyStress stress = new ConcurrencyStress();
+        // warm up
+        stress.run(1, millis);
+
+        double best = 0;
+        boolean regression = false;
+        for (int idx = 0; idx < THREADS.length; idx++)
+        {
+            double rate = stress.run(THREADS[idx], millis);
+            System.out.println(THREADS[idx] + " threads: " + Math.round(rate) + " ops/s");
+            if (best > 0 && rate < best * minScaling)
+            {
+                System.out.println("Scaling regression at " + THREADS[idx] + " threads: "
+                        + Math.round(rate) + " ops/s, best " + Math.round(best));
+                regression = true;
+            }
+            best = Math.max(best, rate);
+        }
+
+        if (stress.failed.get())
+        {
+            System.exit(1);
+        }
+        if (regression)
+        {
+            System.exit(2);
+        }
+    }
+
+    /**
+     * @return operations per second
+     */
+    private double run(int threads, long millis) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        long start = System.nanoTime();
+        for (int idt = 0; idt < threads; idt++)
+        {
+            results.add(executor.submit(new Callable<Long>()
+            {
+                public Long call() throws Exception
+                {
+                    long ops = 0;
+                    while (System.nanoTime() < end && !failed.get())
+                    {
+                        check(convert());
+                        ops++;
+                    }
+                    return Long.valueOf(ops);
+                }
+            }));
+        }
+        long total = 0;
+        for (int idx = 0; idx < results.size(); idx++)
+        {
+            total += results.get(idx).get().longValue();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        return total * 1e9 / elapsed;
+    }
+
+    /**
+     * All the conversion paths
+     * @return outputs, by PATHS position
+     */
+    private String[] convert() throws Exception
+    {
+        String[] out = new String[PATHS.length];
+        int pos = 0;
+
+        DataMirror mirror = DataMirror.on(shared);
+        out[pos++] = mirror.asJSON();
+        out[pos++] = mirror.whereClause();
+        out[pos++] = mirror.asQueryString();
+        out[pos++] = shared.toString();
+
+        // a caller changing its copy must not reorder the shared fields
+        Field[] fields = shared.getFields();
+        StringBuffer names = new StringBuffer(100);
+        for (int idf = 0; idf < fields.length; idf++)
+        {
+            names.append(fields[idf].getName()).append(',');
+        }
+        out[pos++] = names.toString();
+        Collections.reverse(Arrays.asList(fields));
+
+        StringBuffer params = new StringBuffer(100);
+        mirror.prepare(statement(params));
+        out[pos++] = params.toString();
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        mirror.writeJSON(json);
+        out[pos++] = json.toString("UTF-8");
+        out[pos++] = new String(JsonEncoder.encode(shared), "UTF-8");
+
+        MemoryChannel csv = new MemoryChannel();
+        new DataCsv(new Ref()).header(true).write(csv, Arrays.asList(shared, shared));
+        out[pos++] = csv.bytes.toString(DataMirror.ENCODING);
+        List<DataStruct> read = new DataCsv(new Ref()).header(true)
+                .readAll(Channels.newChannel(new ByteArrayInputStream(csv.bytes.toByteArray())));
+        out[pos++] = asJSON(read);
+
+        out[pos++] = asJSON(Collections.singletonList(DataMirror.on(new Ref()).loadFromRequest(request).getData()));
+        out[pos++] = asJSON(DataMirror.on(new Ref()).loadFromRequests(requests));
+        out[pos++] = asJSON(new RequestBinder(new Ref()).bind(new ByteArrayInputStream(body), "application/json"));
+
+        ResultSet rset = resultSet();
+        rset.next();
+        out[pos++] = asJSON(Collections.singletonList(DataMirror.on(new Ref()).loadFromResultSetRow(rset).getData()));
+
+        StringBuffer rows = new StringBuffer(300);
+        DataCursor cursor = new DataCursor(new Ref(), resultSet());
+        while (cursor.next())
+        {
+            rows.append(cursor.asJSON()).append(cursor.getMirror().whereClause()).append('\n');
+        }
+        out[pos++] = rows.toString();
+        return out;
+    }
+
+    /**
+     * JSON and where clause (set fields) of each struct
+     */
+    private static String asJSON(List<DataStruct> structs)
+    {
+        StringBuffer json = new StringBuffer(structs.size() * 100);
+        for (int idx = 0; idx < structs.size(); idx++)
+        {
+            DataMirror mirror = DataMirror.on(structs.get(idx));
+            json.append(mirror.asJSON()).append(mirror.whereClause()).append('\n');
+        }
+        return json.toString();
+    }
+
+    private void check(String[] actual)
+    {
+        for (int idx = 0; idx < PATHS.length; idx++)
+        {
+            if (!expected[idx].equals(actual[idx]) && failed.compareAndSet(false, true))
+            {
+                System.out.println("Wrong output of " + PATHS[idx] + ": " + actual[idx] + ", expected " + expected[idx]);
+            }
+        }
+    }
+
+    /**
+     * In-memory channel for the CSV writer
+     */
+    private static class MemoryChannel implements GatheringByteChannel
+    {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        public int write(ByteBuffer src)
+        {
+            int len = src.remaining();
+            while (src.hasRemaining())
+            {
+                bytes.write(src.get());
+            }
+            return len;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length)
+        {
+            long len = 0;
+            for (int idx = offset; idx < offset + length; idx++)
+            {
+                len += write(srcs[idx]);
+            }
+            return len;
+        }
+
+        public long write(ByteBuffer[] srcs)
+        {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * In-memory statement: records the bound parameters as "pos=value;"
+     */
+    private static PreparedStatement statement(final StringBuffer params)
+    {
+        return (PreparedStatement) Proxy.newProxyInstance(ConcurrencyStress.class.getClassLoader(),
+                new Class[]
+                {
+                    PreparedStatement.class
+                }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("setNull"))
+                {
+                    params.append(args[0]).append("=NULL;");
+                    return null;
+                }
+                if (name.equals("setString") || name.equals("setInt") || name.equals("setDouble") || name.equals("setObject"))
+                {
+                    params.append(args[0]).append('=').append(args[1]).append(';');
+                    return null;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    /**
+     * In-memory request: parameters only
+     */
+    private static HttpServletRequest request(final Map<String, String> params)
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance(ConcurrencyStress.class.getClassLoader(),
+                new Class[]
+                {
+                    HttpServletRequest.class
+                }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("getParameterNames"))
+                {
+                    return Collections.enumeration(params.keySet());
+                }
+                if (name.equals("getParameter"))
+                {
+                    return params.get(args[0]);
+                }
+                if (name.equals("setAttribute"))
+                {
+                    return null;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    /**
+     * In-memory ResultSet over ROWS, one per thread
+     */
+    private static ResultSet resultSet()
+    {
+        final ResultSetMetaData rsmd = (ResultSetMetaData) Proxy.newProxyInstance(ConcurrencyStress.class.getClassLoader(),
+                new Class[]
+                {
+                    ResultSetMetaData.class
+                }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("getColumnCount"))
+                {
+                    return Integer.valueOf(COLUMNS.length);
+                }
+                if (name.equals("getColumnLabel") || name.equals("getColumnName"))
+                {
+                    return COLUMNS[((Integer) args[0]).intValue() - 1];
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+        return (ResultSet) Proxy.newProxyInstance(ConcurrencyStress.class.getClassLoader(),
+                new Class[]
+                {
+                    ResultSet.class
+                }, new InvocationHandler()
+        {
+            private int row = -1;
+            private boolean wasNull = false;
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws SQLException
+            {
+                String name = method.getName();
+                if (name.equals("next"))
+                {
+                    return Boolean.valueOf(++row < ROWS.length);
+                }
+                if (name.equals("getMetaData"))
+                {
+                    return rsmd;
+                }
+                if (name.equals("wasNull"))
+                {
+                    return Boolean.valueOf(wasNull);
+                }
+                if (name.equals("getFetchSize"))
+                {
+                    return Integer.valueOf(0);
+                }
+                if (name.equals("close") || name.equals("setFetchSize") || name.equals("getStatement"))
+                {
+                    return null;
+                }
+                if (args != null && args.length == 1 && (name.equals("getString")
+                        || name.equals("getInt") || name.equals("getDouble") || name.equals("getObject")))
+                {
+                    Object value = ROWS[row][column(args[0])];
+                    wasNull = value == null;
+                    if (name.equals("getString"))
+                    {
+                        return value == null ? null : value.toString();
+                    }
+                    if (name.equals("getInt"))
+                    {
+                        return Integer.valueOf(value == null ? 0 : ((Number) value).intValue());
+                    }
+                    if (name.equals("getDouble"))
+                    {
+                        return Double.valueOf(value == null ? 0 : ((Number) value).doubleValue());
+                    }
+                    return value;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+
+            private int column(Object arg) throws SQLException
+            {
+                if (arg instanceof Integer)
+                {
+                    return ((Integer) arg).intValue() - 1;
+                }
+                for (int idc = 0; idc < COLUMNS.length; idc++)
+                {
+                    if (COLUMNS[idc].equalsIgnoreCase((String) arg))
+                    {
+                        return idc;
+                    }
+                }
+                throw new SQLException("Column not found: " + arg);
+            }
+        });
+    }
+}